@@ -0,0 +1,173 @@
+package alex.kaghktsyan.colora;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.os.Debug;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.View;
+
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+import androidx.test.platform.app.InstrumentationRegistry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Drives synthetic strokes through DrawingView and ColorPickerView and checks that the per-frame
+ * path allocates nothing: every move event plus the onDraw() of the frame it produces. Each
+ * stroke is drawn twice: the first pass warms up tiles, caches and buffers, the second is counted.
+ *
+ * Debug's thread allocation counters are deprecated, but the platform has no replacement that
+ * counts allocations per thread.
+ */
+@SuppressWarnings("deprecation")
+@RunWith(AndroidJUnit4.class)
+public class DrawingViewAllocationTest {
+
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 1920;
+    private static final int MOVES = 60;
+
+    private DrawingView view;
+    private ColorPickerView picker;
+    // Frames are drawn into a software canvas created up front, so the canvas itself is not counted
+    private Bitmap frame;
+    private Canvas frameCanvas;
+    private final MotionEvent[] stroke = new MotionEvent[MOVES + 2];
+    private final MotionEvent[] hueDrag = new MotionEvent[MOVES + 2];
+    private final MotionEvent[] squareDrag = new MotionEvent[MOVES + 2];
+
+    @Before
+    public void setUp() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            Context context = InstrumentationRegistry.getInstrumentation().getTargetContext();
+            view = new DrawingView(context);
+            layOut(view, HEIGHT);
+            picker = new ColorPickerView(context);
+            // The picker is 0.9 times as tall as it is wide
+            layOut(picker, (int) (WIDTH * 0.9f));
+        });
+        frame = Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888);
+        frameCanvas = new Canvas(frame);
+
+        // Events are built up front so obtaining them is not counted
+        buildDrag(stroke, 200, 300, 700, 300, 300);
+        // Along the picker's hue bar, then across its saturation/value square
+        buildDrag(hueDrag, 60, 807, 1000, 807, 0);
+        buildDrag(squareDrag, 400, 100, 1000, 650, 100);
+    }
+
+    @After
+    public void tearDown() {
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> view.release());
+        frame.recycle();
+        recycle(stroke);
+        recycle(hueDrag);
+        recycle(squareDrag);
+    }
+
+    @Test
+    public void brushFramesDoNotAllocate() {
+        assertFramesDoNotAllocate(view, stroke, () -> view.setEraserMode(false));
+    }
+
+    @Test
+    public void radialSymmetryBrushFramesDoNotAllocate() {
+        assertFramesDoNotAllocate(view, stroke, () -> {
+            view.setEraserMode(false);
+            view.setSymmetryType(DrawingView.SymmetryType.RADIAL);
+        });
+    }
+
+    @Test
+    public void triangleFramesDoNotAllocate() {
+        assertFramesDoNotAllocate(view, stroke, () -> {
+            view.setShapeType(DrawingView.ShapeType.TRIANGLE);
+            view.setSymmetryType(DrawingView.SymmetryType.VERTICAL);
+        });
+    }
+
+    @Test
+    public void pickerFramesDoNotAllocate() {
+        assertFramesDoNotAllocate(view, stroke, () -> view.setPickerMode(true));
+    }
+
+    @Test
+    public void colorPickerHueFramesDoNotAllocate() {
+        assertFramesDoNotAllocate(picker, hueDrag, () -> { });
+    }
+
+    @Test
+    public void colorPickerSquareFramesDoNotAllocate() {
+        assertFramesDoNotAllocate(picker, squareDrag, () -> { });
+    }
+
+    private void assertFramesDoNotAllocate(View target, MotionEvent[] events, Runnable setup) {
+        int[] allocations = new int[1];
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            setup.run();
+            drawDrag(target, events, false);
+
+            drawDrag(target, events, true);
+            allocations[0] = Debug.getThreadAllocCount();
+        });
+        assertEquals("objects allocated over " + MOVES + " move events and frames", 0, allocations[0]);
+    }
+
+    // Runs on the main thread; when counted, only the move events and their frames are measured
+    private void drawDrag(View target, MotionEvent[] events, boolean counted) {
+        target.onTouchEvent(events[0]);
+        drawFrame(target);
+        if (counted) {
+            Debug.resetThreadAllocCount();
+            Debug.startAllocCounting();
+        }
+        for (int i = 1; i <= MOVES; i++) {
+            target.onTouchEvent(events[i]);
+            drawFrame(target);
+        }
+        if (counted) {
+            Debug.stopAllocCounting();
+        }
+        target.onTouchEvent(events[MOVES + 1]);
+    }
+
+    // onDraw() is protected, which this package can call; draw() would add the framework's own work
+    private void drawFrame(View target) {
+        if (target == view) {
+            view.onDraw(frameCanvas);
+        } else {
+            picker.onDraw(frameCanvas);
+        }
+    }
+
+    private static void layOut(View target, int height) {
+        target.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(height, View.MeasureSpec.EXACTLY));
+        target.layout(0, 0, WIDTH, height);
+    }
+
+    // DOWN at (x0, y0), MOVES moves bulging by bulge on the way, and UP at (x1, y1)
+    private static void buildDrag(MotionEvent[] out, float x0, float y0, float x1, float y1, float bulge) {
+        long time = SystemClock.uptimeMillis();
+        out[0] = MotionEvent.obtain(time, time, MotionEvent.ACTION_DOWN, x0, y0, 0);
+        for (int i = 0; i < MOVES; i++) {
+            float t = i / (float) (MOVES - 1);
+            out[i + 1] = MotionEvent.obtain(time, time + 8 * (i + 1), MotionEvent.ACTION_MOVE,
+                    x0 + (x1 - x0) * t, y0 + (y1 - y0) * t + bulge * (float) Math.sin(t * Math.PI), 0);
+        }
+        out[MOVES + 1] = MotionEvent.obtain(time, time + 8 * (MOVES + 1), MotionEvent.ACTION_UP, x1, y1, 0);
+    }
+
+    private static void recycle(MotionEvent[] events) {
+        for (MotionEvent event : events) {
+            if (event != null) event.recycle();
+        }
+    }
+}
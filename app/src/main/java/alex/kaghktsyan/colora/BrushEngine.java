@@ -0,0 +1,203 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Renders strokes as evenly spaced stamps of a precomputed dab texture. Softness is baked
+ * into the ALPHA_8 dab once per (size, hardness) pair, so soft brushes cost the same as hard
+ * ones. The dab is tinted by the paint colour when drawn.
+ */
+public class BrushEngine {
+
+    private static final int MAX_CACHED_DABS = 8;
+
+    private final Map<Integer, Bitmap> dabCache = new LinkedHashMap<Integer, Bitmap>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, Bitmap> eldest) {
+            if (size() > MAX_CACHED_DABS) {
+                eldest.getValue().recycle();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private int diameter = 10;
+    private int hardness = 100;
+    private float spacing = 0.15f;
+    private Bitmap dab;
+
+    // Dabs produced since the last begin()/clearDabs() call, as x/y pairs
+    private float[] dabs = new float[64];
+    private int dabCount = 0;
+    private float penX, penY;
+    private float distanceToNextDab;
+
+    public void setBrush(float size, int hardness) {
+        int newDiameter = Math.max(1, Math.round(size));
+        if (newDiameter != diameter || hardness != this.hardness) {
+            diameter = newDiameter;
+            this.hardness = Math.max(0, Math.min(100, hardness));
+            dab = null;
+        }
+    }
+
+    // Distance between dabs as a fraction of the brush diameter
+    public void setSpacing(float spacing) {
+        this.spacing = Math.max(0.01f, spacing);
+    }
+
+    public float getSpacing() {
+        return spacing;
+    }
+
+    private float step() {
+        return Math.max(1f, diameter * spacing);
+    }
+
+    private Bitmap getDab() {
+        if (dab == null || dab.isRecycled()) {
+            int key = diameter * 101 + hardness;
+            dab = dabCache.get(key);
+            if (dab == null) {
+                dab = createDab(diameter, hardness);
+                dabCache.put(key, dab);
+            }
+        }
+        return dab;
+    }
+
+    private static Bitmap createDab(int diameter, int hardness) {
+        // One pixel of padding on each side keeps the filtered edge from being clipped
+        int size = diameter + 2;
+        float center = size / 2f;
+        float radius = diameter / 2f;
+        float solid = radius * (hardness / 100f);
+        int[] pixels = new int[size * size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                float dx = x + 0.5f - center;
+                float dy = y + 0.5f - center;
+                float d = (float) Math.sqrt(dx * dx + dy * dy);
+                float a;
+                if (d <= solid) {
+                    a = 1f;
+                } else if (d >= radius + 0.5f) {
+                    a = 0f;
+                } else if (radius - solid < 1f) {
+                    // Hard brush: one pixel of antialiasing at the rim
+                    a = Math.max(0f, Math.min(1f, radius + 0.5f - d));
+                } else {
+                    float t = Math.min(1f, (d - solid) / (radius - solid));
+                    a = 1f - t * t * (3 - 2 * t);
+                }
+                pixels[y * size + x] = ((int) (a * 255 + 0.5f) << 24) | 0xFFFFFF;
+            }
+        }
+        Bitmap argb = Bitmap.createBitmap(pixels, size, size, Bitmap.Config.ARGB_8888);
+        Bitmap alpha = argb.extractAlpha();
+        argb.recycle();
+        return alpha;
+    }
+
+    public void begin(float x, float y) {
+        dabCount = 0;
+        addDab(x, y);
+        penX = x;
+        penY = y;
+        distanceToNextDab = step();
+    }
+
+    // Drops the pending dabs; the pen position and dab spacing carry on
+    public void clearDabs() {
+        dabCount = 0;
+    }
+
+    // Walks the quad from the current pen position and adds a dab every step() pixels
+    public void quadTo(float cx, float cy, float x, float y) {
+        float x0 = penX, y0 = penY;
+        float approxLength = (float) (Math.hypot(cx - x0, cy - y0) + Math.hypot(x - cx, y - cy));
+        int pieces = Math.max(1, (int) Math.ceil(approxLength / Math.max(1f, step() / 2f)));
+        float px = x0, py = y0;
+        for (int i = 1; i <= pieces; i++) {
+            float t = i / (float) pieces;
+            float u = 1 - t;
+            float qx = u * u * x0 + 2 * u * t * cx + t * t * x;
+            float qy = u * u * y0 + 2 * u * t * cy + t * t * y;
+            float dx = qx - px;
+            float dy = qy - py;
+            float length = (float) Math.hypot(dx, dy);
+            float position = 0;
+            while (distanceToNextDab <= length - position) {
+                position += distanceToNextDab;
+                float ratio = position / length;
+                addDab(px + dx * ratio, py + dy * ratio);
+                distanceToNextDab = step();
+            }
+            distanceToNextDab -= length - position;
+            px = qx;
+            py = qy;
+        }
+        penX = x;
+        penY = y;
+    }
+
+    private void addDab(float x, float y) {
+        if (dabCount * 2 + 2 > dabs.length) {
+            float[] grown = new float[dabs.length * 2];
+            System.arraycopy(dabs, 0, grown, 0, dabs.length);
+            dabs = grown;
+        }
+        dabs[dabCount * 2] = x;
+        dabs[dabCount * 2 + 1] = y;
+        dabCount++;
+    }
+
+    // End of the stroke drawn so far
+    public float getPenX() {
+        return penX;
+    }
+
+    public float getPenY() {
+        return penY;
+    }
+
+    public int getDabCount() {
+        return dabCount;
+    }
+
+    // Bounds of the pending dabs; returns false if there are none
+    public boolean getDabBounds(RectF out) {
+        if (dabCount == 0) {
+            out.setEmpty();
+            return false;
+        }
+        out.set(dabs[0], dabs[1], dabs[0], dabs[1]);
+        for (int i = 1; i < dabCount; i++) {
+            out.union(dabs[i * 2], dabs[i * 2 + 1]);
+        }
+        float pad = diameter / 2f + 2;
+        out.inset(-pad, -pad);
+        return true;
+    }
+
+    public void drawDabs(Canvas canvas, Paint paint) {
+        Bitmap texture = getDab();
+        float half = texture.getWidth() / 2f;
+        for (int i = 0; i < dabCount; i++) {
+            canvas.drawBitmap(texture, dabs[i * 2] - half, dabs[i * 2 + 1] - half, paint);
+        }
+    }
+
+    public void release() {
+        for (Bitmap b : dabCache.values()) b.recycle();
+        dabCache.clear();
+        dab = null;
+    }
+}
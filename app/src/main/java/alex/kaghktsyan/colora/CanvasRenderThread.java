@@ -0,0 +1,105 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Canvas;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.view.Choreographer;
+import android.view.SurfaceHolder;
+import android.view.SurfaceView;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Draws into a SurfaceView from a thread of its own, at most once per vsync and only while
+ * frames are being requested. A busy UI thread no longer delays drawing, and a slow frame no
+ * longer delays the UI.
+ */
+public class CanvasRenderThread implements SurfaceHolder.Callback, Choreographer.FrameCallback {
+
+    public interface Renderer {
+        // Called on the render thread at the start of every frame, even if there is no surface yet
+        void onFrame();
+
+        void draw(Canvas canvas);
+    }
+
+    private final SurfaceHolder holder;
+    private final Renderer renderer;
+    private final HandlerThread thread = new HandlerThread("CanvasRender", Process.THREAD_PRIORITY_DISPLAY);
+    private final Handler handler;
+    private final AtomicBoolean isFrameRequested = new AtomicBoolean(false);
+    // Held while drawing, so surfaceDestroyed() cannot return while the surface is in use
+    private final Object surfaceLock = new Object();
+    private boolean hasSurface = false;
+    // Render thread only: requests made while a frame is being built are covered by that frame
+    private boolean isInFrame = false;
+    // The Choreographer is per looper, so it has to be looked up on the render thread
+    private final Runnable scheduleFrame = () -> Choreographer.getInstance().postFrameCallback(this);
+
+    public CanvasRenderThread(SurfaceView surfaceView, Renderer renderer) {
+        this.holder = surfaceView.getHolder();
+        this.renderer = renderer;
+        thread.start();
+        handler = new Handler(thread.getLooper());
+        hasSurface = holder.getSurface() != null && holder.getSurface().isValid();
+        holder.addCallback(this);
+    }
+
+    // May be called from any thread
+    public void requestRender() {
+        if (Thread.currentThread() == thread && isInFrame) return;
+        if (isFrameRequested.compareAndSet(false, true)) {
+            handler.post(scheduleFrame);
+        }
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        isFrameRequested.set(false);
+        isInFrame = true;
+        renderer.onFrame();
+        synchronized (surfaceLock) {
+            if (hasSurface) {
+                Canvas canvas = holder.lockHardwareCanvas();
+                if (canvas != null) {
+                    try {
+                        renderer.draw(canvas);
+                    } finally {
+                        holder.unlockCanvasAndPost(canvas);
+                    }
+                }
+            }
+        }
+        isInFrame = false;
+    }
+
+    @Override
+    public void surfaceCreated(SurfaceHolder holder) {
+        synchronized (surfaceLock) {
+            hasSurface = true;
+        }
+        requestRender();
+    }
+
+    @Override
+    public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
+        requestRender();
+    }
+
+    @Override
+    public void surfaceDestroyed(SurfaceHolder holder) {
+        synchronized (surfaceLock) {
+            hasSurface = false;
+        }
+    }
+
+    // Frames already scheduled are dropped; the thread ends once the current one is done
+    public void quit() {
+        holder.removeCallback(this);
+        synchronized (surfaceLock) {
+            hasSurface = false;
+        }
+        thread.quit();
+    }
+}
@@ -1,12 +1,13 @@
 package alex.kaghktsyan.colora;
 
 import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.ComposeShader;
 import android.graphics.LinearGradient;
+import android.graphics.Matrix;
 import android.graphics.Paint;
-import android.graphics.PorterDuff;
 import android.graphics.RectF;
 import android.graphics.Shader;
 import android.util.AttributeSet;
@@ -16,6 +17,8 @@ import android.view.View;
 public class ColorPickerView extends View {
     private Paint huePaint;
     private Paint satValPaint;
+    private Paint saturationPaint;
+    private Paint valuePaint;
     private Paint alphaPaint;
     private Paint previewPaint;
     private Paint selectorPaint;
@@ -30,6 +33,11 @@ public class ColorPickerView extends View {
     private RectF previewRect = new RectF();
 
     private Shader hueShader;
+    private final float[] hueHsv = {0, 1, 1};
+    // Alpha ramp; an ALPHA_8 bitmap shader takes its colour from the paint, so one shader serves every colour
+    private Bitmap alphaRamp;
+    private BitmapShader alphaShader;
+    private final Matrix alphaShaderMatrix = new Matrix();
 
     public interface OnColorChangedListener {
         void onColorChanged(int color);
@@ -48,6 +56,8 @@ public class ColorPickerView extends View {
     private void init() {
         huePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         satValPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        saturationPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        valuePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         alphaPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         previewPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
         selectorPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
@@ -98,6 +108,25 @@ public class ColorPickerView extends View {
         }
         hueShader = new LinearGradient(hueRect.left, 0, hueRect.right, 0, colors, null, Shader.TileMode.CLAMP);
         huePaint.setShader(hueShader);
+
+        // The square is the hue, washed out to white to the left and darkened to black downwards
+        saturationPaint.setShader(new LinearGradient(satValRect.left, 0, satValRect.right, 0,
+                Color.WHITE, 0x00FFFFFF, Shader.TileMode.CLAMP));
+        valuePaint.setShader(new LinearGradient(0, satValRect.top, 0, satValRect.bottom,
+                Color.TRANSPARENT, Color.BLACK, Shader.TileMode.CLAMP));
+
+        if (alphaShader == null) {
+            int[] ramp = new int[256];
+            for (int i = 0; i < 256; i++) ramp[i] = i << 24;
+            Bitmap argb = Bitmap.createBitmap(ramp, 256, 1, Bitmap.Config.ARGB_8888);
+            alphaRamp = argb.extractAlpha();
+            argb.recycle();
+            alphaShader = new BitmapShader(alphaRamp, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+            alphaPaint.setShader(alphaShader);
+        }
+        alphaShaderMatrix.setScale(alphaRect.width() / 256f, 1);
+        alphaShaderMatrix.postTranslate(alphaRect.left, 0);
+        alphaShader.setLocalMatrix(alphaShaderMatrix);
     }
 
     @Override
@@ -107,21 +136,17 @@ public class ColorPickerView extends View {
         canvas.drawRoundRect(previewRect, 10, 10, previewPaint);
 
         // Draw Saturation/Value picker
-        Shader valShader = new LinearGradient(0, satValRect.top, 0, satValRect.bottom, Color.WHITE, Color.BLACK, Shader.TileMode.CLAMP);
-        int hueColor = Color.HSVToColor(new float[]{hsv[0], 1, 1});
-        Shader satShader = new LinearGradient(satValRect.left, 0, satValRect.right, 0, Color.WHITE, hueColor, Shader.TileMode.CLAMP);
-        ComposeShader composeShader = new ComposeShader(valShader, satShader, PorterDuff.Mode.MULTIPLY);
-        satValPaint.setShader(composeShader);
+        hueHsv[0] = hsv[0];
+        satValPaint.setColor(Color.HSVToColor(hueHsv));
         canvas.drawRoundRect(satValRect, 10, 10, satValPaint);
+        canvas.drawRoundRect(satValRect, 10, 10, saturationPaint);
+        canvas.drawRoundRect(satValRect, 10, 10, valuePaint);
 
         // Draw Hue bar
         canvas.drawRoundRect(hueRect, hueRect.height() / 2, hueRect.height() / 2, huePaint);
 
         // Draw Alpha bar
-        int opaqueColor = Color.HSVToColor(255, hsv);
-        int transparentColor = Color.HSVToColor(0, hsv);
-        Shader alphaShader = new LinearGradient(alphaRect.left, 0, alphaRect.right, 0, transparentColor, opaqueColor, Shader.TileMode.CLAMP);
-        alphaPaint.setShader(alphaShader);
+        alphaPaint.setColor(Color.HSVToColor(255, hsv));
         canvas.drawRoundRect(alphaRect, alphaRect.height() / 2, alphaRect.height() / 2, alphaPaint);
 
         // Draw Sat/Val selector
@@ -4,6 +4,8 @@ import android.app.Application;
 import android.content.SharedPreferences;
 import androidx.appcompat.app.AppCompatDelegate;
 
+import java.io.File;
+
 public class ColoraApp extends Application {
     private static final String PREFS_NAME = "theme_prefs";
     private static final String KEY_IS_NIGHT_MODE = "is_night_mode";
@@ -12,6 +14,10 @@ public class ColoraApp extends Application {
     public void onCreate() {
         super.onCreate();
         
+        File journalDir = new File(getCacheDir(), DrawingView.UNDO_JOURNAL_DIR);
+        // Cleanup only frees disk space, so it does not need to hold up the first frame
+        new Thread(() -> UndoJournal.deleteStale(journalDir), "UndoJournalCleanup").start();
+
         SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
         boolean isNightMode = prefs.getBoolean(KEY_IS_NIGHT_MODE, false);
         
@@ -1,5 +1,6 @@
 package alex.kaghktsyan.colora;
 
+import android.app.Activity;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BlurMaskFilter;
@@ -9,15 +10,19 @@ import android.graphics.DashPathEffect;
 import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
-import android.graphics.Point;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
 import android.graphics.RectF;
+import android.os.Build;
 import android.util.AttributeSet;
 import android.util.Base64;
+import android.util.Log;
 import android.view.MotionEvent;
 import android.view.ScaleGestureDetector;
+import android.view.SurfaceView;
 import android.view.View;
+import android.view.Window;
 
 import androidx.annotation.NonNull;
 
@@ -26,14 +31,15 @@ import com.google.firebase.firestore.FirebaseFirestore;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
 import java.util.Map;
-import java.util.Stack;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class DrawingView extends View {
 
@@ -45,23 +51,42 @@ public class DrawingView extends View {
         NONE, VERTICAL, HORIZONTAL, RADIAL
     }
 
+    public enum RenderMode {
+        HARDWARE, SOFTWARE
+    }
+
+    public enum SelectionTool {
+        RECT, WAND, LASSO
+    }
+
     public static class Layer {
-        public Bitmap bitmap;
-        public Canvas canvas;
+        public TiledBitmap tiles;
         public String name;
         public boolean isVisible = true;
         public float opacity = 1.0f;
 
         public Layer(int w, int h, String name) {
-            this.bitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-            this.canvas = new Canvas(this.bitmap);
+            this.tiles = new TiledBitmap(w, h);
             this.name = name;
         }
 
         public void recycle() {
-            if (bitmap != null && !bitmap.isRecycled()) {
-                bitmap.recycle();
-            }
+            tiles.recycle();
+        }
+    }
+
+    // Document state handed from one DrawingView to the next across activity recreation
+    public static class Session {
+        private final List<Layer> layers;
+        private final UndoHistory history;
+        private final int currentLayerIndex;
+        private final int backgroundColor;
+
+        private Session(List<Layer> layers, UndoHistory history, int currentLayerIndex, int backgroundColor) {
+            this.layers = layers;
+            this.history = history;
+            this.currentLayerIndex = currentLayerIndex;
+            this.backgroundColor = backgroundColor;
         }
     }
 
@@ -73,12 +98,114 @@ public class DrawingView extends View {
         void onTextRequest(float x, float y);
     }
 
+    public interface OnFillProgressListener {
+        void onFillProgress(int percent);
+        void onFillFinished();
+    }
+
     private Paint paint;
     private Paint textPaint;
     private Paint selectionPaint;
     private final Paint layerPaint = new Paint();
-    private final Path currentPath = new Path();
-    private final List<Layer> layers = new ArrayList<>();
+    private final Canvas cacheCanvas = new Canvas();
+    private Bitmap belowCache;
+    private Bitmap aboveCache;
+    private boolean belowCacheDirty = true;
+    private boolean aboveCacheDirty = true;
+    private final BrushEngine brushEngine = new BrushEngine();
+    private final Paint dabPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final PorterDuffXfermode eraseXfermode = new PorterDuffXfermode(PorterDuff.Mode.DST_OUT);
+    // Live stroke (one segment at a time) or shape preview, merged into the layer on ACTION_UP
+    private final TiledBitmap strokeBuffer = new TiledBitmap(0, 0);
+    private final Paint strokeBufferPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final RectF strokeDirtyRect = new RectF();
+    private final RectF tileRect = new RectF();
+    private boolean isStroking = false;
+    private final RectF dirtyRect = new RectF();
+    private final RectF segmentRect = new RectF();
+    private final RectF screenDirtyRect = new RectF();
+    private final Rect clipBounds = new Rect();
+    private final Matrix symmetryMatrix = new Matrix();
+    private final RectF symmetrySource = new RectF();
+    private final RectF symmetryMirror = new RectF();
+    private final Path trianglePath = new Path();
+    private final float[] touchPoint = new float[2];
+    // Drawers kept in fields, as a capturing lambda would be allocated on every touch event
+    private final TiledBitmap.TileDrawer dabDrawer = c -> drawSymmetricDabs(c, dabPaint);
+    private float shapeEndX, shapeEndY;
+    private Bitmap strokeTile;
+    private final RectF strokeTileRect = new RectF();
+    private final TiledBitmap.TileDrawer shapeDrawer = c -> drawSymmetricShape(c, this.paint, this.startX, this.startY, shapeEndX, shapeEndY, this.currentShape);
+    private final TiledBitmap.TileDrawer strokeTileDrawer = c -> c.drawBitmap(strokeTile, strokeTileRect.left, strokeTileRect.top, strokeBufferPaint);
+    private final Paint maskKeepPaint = new Paint();
+    private final Paint maskCutPaint = new Paint();
+    private final Paint clearPaint = new Paint();
+    private final FloodFill floodFill = new FloodFill();
+    private final Rect fillBounds = new Rect();
+    private int fillTolerance = 15;
+    private boolean isFillSampleAllLayers = false;
+    // Flattened document (background included) for tools that sample what the user sees
+    private Bitmap composite;
+    private final Rect compositeDirtyRect = new Rect();
+    // Copy of the composite's pixels, refreshed with it, so sampling a colour is a plain array read
+    private int[] compositePixels = new int[0];
+    // Eyedropper loupe: the finger position on screen and the layer pixel under it
+    private static final float LOUPE_RADIUS = 120;
+    private static final float LOUPE_ZOOM = 12;
+    private boolean isPicking = false;
+    private float loupeX, loupeY;
+    private int pickX, pickY;
+    private int pickedColor;
+    private final Matrix loupeMatrix = new Matrix();
+    private final Path loupePath = new Path();
+    private final RectF loupeRect = new RectF();
+    private final Paint loupePaint = new Paint();
+    private final Paint loupeRingPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    // Fills expected to block the UI thread longer than this run tile-parallel in the background
+    private static final long PARALLEL_FILL_MIN_NANOS = 150_000_000L;
+    // Cost of a synchronous fill per layer pixel, measured on every one; the first guess keeps
+    // phone-sized canvases synchronous until the device has shown how fast it is
+    private float fillNanosPerPixel = 15;
+    private boolean isParallelFillEnabled = true;
+    private ParallelFloodFill parallelFill;
+    private OnFillProgressListener fillProgressListener;
+    private RenderMode renderMode = RenderMode.HARDWARE;
+    private final FrameStats frameStats = new FrameStats();
+    private Window frameStatsWindow;
+    // Time of the oldest stroke input not yet drawn, for touch-to-frame latency; 0 if there is none
+    private long pendingInputNanos = 0;
+    // Low-latency inking: unbuffered input and a predicted stroke tip drawn over the canvas
+    private boolean isLowLatencyMode = false;
+    private final StrokePredictor strokePredictor = new StrokePredictor();
+    private final float[] predictedPoints = new float[StrokePredictor.MAX_POINTS * 2];
+    private final Path tipPath = new Path();
+    private final Paint tipPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final RectF tipBounds = new RectF();
+    // With a render surface, the render thread draws the canvas and applies brush and shape input
+    // while holding this view's monitor; the UI thread changes the document only in synchronized
+    // methods. Stroke input is handed over through touchQueue without taking the monitor.
+    private volatile CanvasRenderThread renderThread;
+    private final TouchQueue touchQueue = new TouchQueue(1024);
+    private final Matrix queueMatrix = new Matrix();
+    private final float[] queuePoint = new float[2];
+    // UI thread only: the current gesture is a stroke being handed to the render thread
+    private boolean isQueueingStroke = false;
+    // Set once the document has been released or handed to another view; nothing is drawn after that
+    private boolean isReleased = false;
+    private final CanvasRenderThread.Renderer surfaceRenderer = new CanvasRenderThread.Renderer() {
+        @Override
+        public void onFrame() {
+            applyQueuedInput();
+        }
+
+        @Override
+        public void draw(Canvas canvas) {
+            synchronized (DrawingView.this) {
+                if (!isReleased && renderThread != null) drawCanvas(canvas);
+            }
+        }
+    };
+    private List<Layer> layers = new ArrayList<>();
     private int currentLayerIndex = -1;
 
     private float lastX, lastY;
@@ -95,9 +222,30 @@ public class DrawingView extends View {
     private int radialSlices = 8;
 
     private RectF selectionRect = null;
-    private Bitmap selectedBitmap = null;
-    private float moveStartX, moveStartY;
-    private float selectedBitmapX, selectedBitmapY;
+    private SelectionTool selectionTool = SelectionTool.RECT;
+    private SelectionMask.Op selectionOp = SelectionMask.Op.REPLACE;
+    private SelectionMask selectionMask;
+    private final Paint selectionMaskPaint = new Paint();
+    // The wand re-runs from its last seed while the tolerance changes, combining with the mask it started from
+    private long[] selectionBase;
+    private long[] selectionScratch;
+    private boolean isWandActive = false;
+    private int wandX, wandY;
+    private int wandTolerance = 15;
+    // Lasso outline as x/y pairs in layer coordinates
+    private float[] lassoPoints = new float[256];
+    private int lassoPointCount = 0;
+    private final Path lassoPath = new Path();
+    private FloatingSelection floatingSelection;
+    // Handle size on screen; divided by the zoom to get layer units
+    private static final float HANDLE_RADIUS = 24;
+    // Full-quality resample of a scaled or rotated selection, written into the layer when it lands
+    private Future<Bitmap> transformCommit;
+    private final Rect transformBounds = new Rect();
+    private Layer transformLayer;
+    private int transformGeneration = 0;
+    // Document changes asked for while a transform is being resampled, run once it has landed
+    private final List<Runnable> afterTransform = new ArrayList<>();
 
     private int currentColor = Color.BLACK;
     private int currentAlpha = 255;
@@ -107,13 +255,27 @@ public class DrawingView extends View {
     private OnColorPickedListener colorPickedListener;
     private OnTextRequestListener textRequestListener;
 
-    private final List<Bitmap[]> undoStack = new ArrayList<>();
-    private final List<Bitmap[]> redoStack = new ArrayList<>();
-    private static final int MAX_UNDO_STEPS = 10;
+    private static final String TAG = "DrawingView";
+
+    private UndoHistory history = new UndoHistory();
+    public static final String UNDO_JOURNAL_DIR = "undo_journal";
+    private static final String STROKE_LOG_FILE = "strokes.log";
+    // Deletes finished recordings one after another, each only once its recorder has stopped writing
+    private static final ExecutorService TIMELAPSE_CLEANUP = Executors.newSingleThreadExecutor();
 
     private boolean isRecordingTimelapse = false;
     private File timelapseDir;
-    private int frameCounter = 0;
+    // Each recording gets its own directory under timelapseDir
+    private File recordingDir;
+    private TimelapseRecorder timelapseRecorder;
+    private TimelapseRecorder.DropPolicy timelapseDropPolicy = TimelapseRecorder.DropPolicy.COALESCE;
+    private TimelapseRecorder.Output timelapseOutput = TimelapseRecorder.Output.LIVE_VIDEO;
+    // Records edits instead of frames when set; the log is replayed at export
+    private boolean isStrokeLogTimelapse = false;
+    private StrokeLog strokeLog;
+    // Everything a selection move touched, for logging its result
+    private final RectF moveDirtyRect = new RectF();
+    private final Canvas timelapseCanvas = new Canvas();
 
     private final Matrix drawMatrix = new Matrix();
     private final Matrix inverseMatrix = new Matrix();
@@ -132,11 +294,12 @@ public class DrawingView extends View {
     }
 
     private void init(Context context) {
-        setLayerType(View.LAYER_TYPE_SOFTWARE, null);
+        frameStats.reset(frameStatsLabel());
 
+        // Shapes are rasterized opaque into the stroke buffer; brush alpha is applied when compositing
         paint = new Paint();
         paint.setColor(currentColor);
-        paint.setAlpha(currentAlpha);
+        paint.setAlpha(255);
         paint.setStrokeWidth(currentStrokeWidth);
         paint.setStyle(Paint.Style.STROKE);
         paint.setStrokeCap(Paint.Cap.ROUND);
@@ -149,15 +312,26 @@ public class DrawingView extends View {
         textPaint.setTextSize(50);
         textPaint.setAntiAlias(true);
 
+        tipPaint.setStyle(Paint.Style.STROKE);
+        tipPaint.setStrokeCap(Paint.Cap.ROUND);
+        tipPaint.setStrokeJoin(Paint.Join.ROUND);
+
         selectionPaint = new Paint();
         selectionPaint.setColor(Color.BLUE);
         selectionPaint.setStyle(Paint.Style.STROKE);
         selectionPaint.setStrokeWidth(2);
         selectionPaint.setPathEffect(new DashPathEffect(new float[]{10, 10}, 0));
+        selectionMaskPaint.setColor(Color.argb(80, 0, 0, 255));
+        maskKeepPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.DST_IN));
+        maskCutPaint.setXfermode(eraseXfermode);
+        clearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+        loupeRingPaint.setStyle(Paint.Style.STROKE);
+        loupeRingPaint.setStrokeWidth(16);
 
         setupGestures(context);
         
         timelapseDir = new File(context.getCacheDir(), "timelapse_frames");
+        history.setJournalDir(new File(context.getCacheDir(), UNDO_JOURNAL_DIR));
     }
 
     private void setupGestures(Context context) {
@@ -165,7 +339,9 @@ public class DrawingView extends View {
             @Override
             public boolean onScale(@NonNull ScaleGestureDetector detector) {
                 float scaleFactor = detector.getScaleFactor();
-                drawMatrix.postScale(scaleFactor, scaleFactor, detector.getFocusX(), detector.getFocusY());
+                synchronized (DrawingView.this) {
+                    drawMatrix.postScale(scaleFactor, scaleFactor, detector.getFocusX(), detector.getFocusY());
+                }
                 invalidate();
                 return true;
             }
@@ -173,60 +349,219 @@ public class DrawingView extends View {
 
         rotationGestureDetector = new RotationGestureDetector(rotationDetector -> {
             float angle = rotationDetector.getAngle();
-            drawMatrix.postRotate(angle, getWidth() / 2f, getHeight() / 2f);
+            synchronized (DrawingView.this) {
+                drawMatrix.postRotate(angle, getWidth() / 2f, getHeight() / 2f);
+            }
             invalidate();
         });
     }
 
-    public void startTimelapse() {
-        if (isRecordingTimelapse) return;
+    // Returns false if the recording could not be started
+    public synchronized boolean startTimelapse() {
+        if (isRecordingTimelapse) return true;
+        TimelapseRecorder previous = timelapseRecorder;
+        StrokeLog previousLog = strokeLog;
+        if (previous != null) previous.stop();
+        if (previousLog != null) previousLog.finish();
+        timelapseRecorder = null;
+        strokeLog = null;
+        // The previous recorder may still be writing, so the new one never shares its directory
+        long stamp = System.currentTimeMillis();
+        while (new File(timelapseDir, "recording_" + stamp).exists()) stamp++;
+        File dir = new File(timelapseDir, "recording_" + stamp);
+        boolean isCreated = dir.mkdirs();
+        TIMELAPSE_CLEANUP.execute(() -> deleteOldRecordings(previous, previousLog, dir));
+        if (!isCreated) {
+            Log.e(TAG, "Failed to create timelapse directory " + dir);
+            recordingDir = null;
+            return false;
+        }
+        recordingDir = dir;
         isRecordingTimelapse = true;
-        frameCounter = 0;
-        if (timelapseDir.exists()) {
-            File[] files = timelapseDir.listFiles();
-            if (files != null) {
-                for (File f : files) {
-                    if (!f.delete()) f.deleteOnExit();
-                }
-            }
-        } else {
-            if (!timelapseDir.mkdirs()) {
-                // handle error or log
-            }
+        if (isStrokeLogTimelapse) {
+            strokeLog = new StrokeLog(new File(dir, STROKE_LOG_FILE), getWidth(), getHeight(), backgroundColor);
+            strokeLog.writeSnapshot(layers);
+            return true;
         }
+        timelapseRecorder = new TimelapseRecorder(dir, TimelapseRecorder.DEFAULT_QUEUE_SIZE,
+                timelapseDropPolicy, timelapseOutput);
         captureTimelapseFrame();
+        return true;
     }
 
-    public void stopTimelapse() {
+    // Runs on TIMELAPSE_CLEANUP; earlier recordings were awaited by earlier runs
+    private void deleteOldRecordings(TimelapseRecorder previous, StrokeLog previousLog, File keep) {
+        if (previous != null || previousLog != null) {
+            try {
+                if (previous != null) previous.awaitStopped();
+                if (previousLog != null) previousLog.awaitFinished();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        File[] entries = timelapseDir.listFiles();
+        if (entries == null) return;
+        for (File entry : entries) {
+            if (!entry.equals(keep)) deleteRecursively(entry);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) deleteRecursively(child);
+        }
+        if (!file.delete()) file.deleteOnExit();
+    }
+
+    // Frames still queued are written in the background; the recorder reports when they are done
+    public synchronized void stopTimelapse() {
         isRecordingTimelapse = false;
+        if (timelapseRecorder != null) timelapseRecorder.stop();
+        if (strokeLog != null) strokeLog.finish();
+    }
+
+    // Record the next timelapse as a log of edits, replayed at export at any size and frame rate
+    public void setStrokeLogTimelapse(boolean enabled) {
+        isStrokeLogTimelapse = enabled;
+    }
+
+    public boolean isStrokeLogTimelapse() {
+        return isStrokeLogTimelapse;
+    }
+
+    // The current or last stroke log, or null if the last recording captured frames
+    public StrokeLog getStrokeLog() {
+        return strokeLog;
+    }
+
+    // What gives way when frames are captured faster than they can be written; applies from the next recording
+    public void setTimelapseDropPolicy(TimelapseRecorder.DropPolicy policy) {
+        timelapseDropPolicy = policy;
+    }
+
+    public TimelapseRecorder.DropPolicy getTimelapseDropPolicy() {
+        return timelapseDropPolicy;
+    }
+
+    // Whether frames are encoded while drawing or saved as JPEGs for export; applies from the next recording
+    public void setTimelapseOutput(TimelapseRecorder.Output output) {
+        timelapseOutput = output;
+    }
+
+    public TimelapseRecorder.Output getTimelapseOutput() {
+        return timelapseOutput;
+    }
+
+    // The current or last recording, or null if nothing has been recorded
+    public TimelapseRecorder getTimelapseRecorder() {
+        return timelapseRecorder;
     }
 
     public boolean isRecordingTimelapse() {
         return isRecordingTimelapse;
     }
 
+    // The current or last recording's directory, or null if nothing has been recorded
     public File getTimelapseDir() {
-        return timelapseDir;
+        return recordingDir;
     }
 
+    // Frames captured, or for a stroke log the edits recorded
     public int getFrameCount() {
-        return frameCounter;
+        if (strokeLog != null) return strokeLog.getOperationCount();
+        return timelapseRecorder != null ? timelapseRecorder.getFrameCount() : 0;
     }
 
+    // Draws the document into a pooled frame and hands it to the recorder's worker
     private void captureTimelapseFrame() {
-        if (!isRecordingTimelapse) return;
-        
-        Bitmap frame = getBitmap();
-        final int currentFrame = frameCounter++;
-        new Thread(() -> {
-            File frameFile = new File(timelapseDir, String.format(Locale.US, "frame_%05d.jpg", currentFrame));
-            try (FileOutputStream out = new FileOutputStream(frameFile)) {
-                frame.compress(Bitmap.CompressFormat.JPEG, 80, out);
-            } catch (IOException ignored) {
-            } finally {
-                frame.recycle();
-            }
-        }).start();
+        if (!isRecordingTimelapse || timelapseRecorder == null || getWidth() <= 0 || getHeight() <= 0) return;
+        Bitmap frame = timelapseRecorder.obtainFrame(getWidth(), getHeight());
+        if (frame == null) return;
+        timelapseCanvas.setBitmap(frame);
+        drawLayers(timelapseCanvas);
+        timelapseCanvas.setBitmap(null);
+        timelapseRecorder.submit(frame);
+    }
+
+    // Layers are only ever edited through offscreen tile bitmaps, so the on-screen composite and
+    // viewport transform can run on the GPU. SOFTWARE is kept as a fallback and for comparison.
+    public void setRenderMode(RenderMode mode) {
+        renderMode = mode;
+        setLayerType(mode == RenderMode.SOFTWARE ? View.LAYER_TYPE_SOFTWARE : View.LAYER_TYPE_NONE, null);
+        frameStats.reset(frameStatsLabel());
+        invalidate();
+    }
+
+    public RenderMode getRenderMode() {
+        return renderMode;
+    }
+
+    /**
+     * Asks for touch events as soon as they arrive instead of once per frame, and draws a short
+     * prediction of where the brush is heading on top of the canvas. Predicted points are
+     * preview only; the stroke written to the layer always follows the real input.
+     */
+    public void setLowLatencyMode(boolean enabled) {
+        isLowLatencyMode = enabled;
+        frameStats.reset(frameStatsLabel());
+    }
+
+    public boolean isLowLatencyMode() {
+        return isLowLatencyMode;
+    }
+
+    /**
+     * Moves drawing onto a render thread that draws into surface, which must sit directly below
+     * this view and cover the same area. The view itself then draws nothing. Null goes back to
+     * drawing in onDraw.
+     */
+    public void setRenderSurface(SurfaceView surface) {
+        if (renderThread != null) {
+            renderThread.quit();
+            renderThread = null;
+        }
+        if (surface != null) {
+            renderThread = new CanvasRenderThread(surface, surfaceRenderer);
+        }
+        invalidate();
+    }
+
+    @Override
+    public void invalidate() {
+        CanvasRenderThread thread = renderThread;
+        if (thread != null) {
+            thread.requestRender();
+        } else {
+            super.invalidate();
+        }
+    }
+
+    private String frameStatsLabel() {
+        return isLowLatencyMode ? renderMode.name() + " low-latency" : renderMode.name();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (FrameStats.isEnabled() && getContext() instanceof Activity) {
+            frameStatsWindow = ((Activity) getContext()).getWindow();
+            frameStatsWindow.addOnFrameMetricsAvailableListener(frameStats, getHandler());
+        }
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        if (renderThread != null) {
+            renderThread.quit();
+            renderThread = null;
+        }
+        if (frameStatsWindow != null) {
+            frameStatsWindow.removeOnFrameMetricsAvailableListener(frameStats);
+            frameStatsWindow = null;
+        }
+        super.onDetachedFromWindow();
     }
 
     public void setTransformMode(boolean enabled) {
@@ -238,7 +573,7 @@ public class DrawingView extends View {
         return isTransformMode;
     }
 
-    public void resetTransform() {
+    public synchronized void resetTransform() {
         drawMatrix.reset();
         invalidate();
     }
@@ -255,39 +590,46 @@ public class DrawingView extends View {
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
         if (w > 0 && h > 0) {
-            if (layers.isEmpty()) {
-                addLayer("Background Layer");
-            } else {
-                for (Layer layer : layers) {
-                    Bitmap newBitmap = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
-                    Canvas newCanvas = new Canvas(newBitmap);
-                    newCanvas.drawBitmap(layer.bitmap, 0, 0, null);
-                    layer.recycle();
-                    layer.bitmap = newBitmap;
-                    layer.canvas = newCanvas;
+            synchronized (this) {
+                strokeBuffer.resize(w, h);
+                if (layers.isEmpty()) {
+                    addLayer("Background Layer");
+                } else {
+                    for (Layer layer : layers) {
+                        layer.tiles.resize(w, h);
+                    }
+                    invalidateLayerCache();
                 }
             }
         }
     }
 
-    public void addLayer(String name) {
+    public synchronized void addLayer(String name) {
+        if (deferUntilTransformed(() -> addLayer(name))) return;
         if (getWidth() > 0 && getHeight() > 0) {
-            saveStateToUndo();
             Layer layer = new Layer(getWidth(), getHeight(), name);
             layers.add(layer);
+            if (layers.size() > 1) {
+                history.push(new UndoHistory.LayerChange(layers, layer, layers.size() - 1, true));
+            }
+            if (strokeLog != null) strokeLog.addLayer(layers.size() > 1);
             currentLayerIndex = layers.size() - 1;
-            invalidate();
+            invalidateLayerCache();
             captureTimelapseFrame();
         }
     }
 
-    public void removeLayer(int index) {
+    public synchronized void removeLayer(int index) {
+        if (deferUntilTransformed(() -> removeLayer(index))) return;
+        cancelFill();
         if (layers.size() > 1 && index >= 0 && index < layers.size()) {
-            saveStateToUndo();
-            layers.get(index).recycle();
-            layers.remove(index);
+            closeOpenEdit();
+            if (deferUntilTransformed(() -> removeLayer(index))) return;
+            Layer removed = layers.remove(index);
+            history.push(new UndoHistory.LayerChange(layers, removed, index, false));
+            if (strokeLog != null) strokeLog.removeLayer(index);
             currentLayerIndex = Math.min(currentLayerIndex, layers.size() - 1);
-            invalidate();
+            invalidateLayerCache();
             captureTimelapseFrame();
         }
     }
@@ -295,44 +637,169 @@ public class DrawingView extends View {
     @Override
     protected void onDraw(@NonNull Canvas canvas) {
         super.onDraw(canvas);
+        // The render thread draws into the surface below; this view stays transparent over it
+        if (renderThread != null) return;
+        // A released or detached view has no caches left to draw from
+        if (isReleased) return;
+        long drawStart = frameStatsWindow != null ? System.nanoTime() : 0;
+        drawCanvas(canvas);
+        if (frameStatsWindow != null) {
+            long drawEnd = System.nanoTime();
+            frameStats.addDrawTime(drawEnd - drawStart);
+            if (pendingInputNanos != 0) {
+                frameStats.addInputDrawn(pendingInputNanos, drawEnd);
+                pendingInputNanos = 0;
+            }
+        }
+    }
+
+    // Draws the whole canvas as seen on screen; called from onDraw or from the render thread
+    private void drawCanvas(Canvas canvas) {
         canvas.drawColor(backgroundColor);
 
         canvas.save();
         canvas.concat(drawMatrix);
+        canvas.getClipBounds(clipBounds);
+
+        // Everything except the active layer comes from two flattened caches
+        if (currentLayerIndex > 0) {
+            belowCache = updateCache(belowCache, belowCacheDirty, 0, currentLayerIndex);
+            belowCacheDirty = false;
+            if (belowCache != null) canvas.drawBitmap(belowCache, 0, 0, null);
+        }
 
-        for (int i = 0; i < layers.size(); i++) {
-            Layer layer = layers.get(i);
+        if (currentLayerIndex >= 0 && currentLayerIndex < layers.size()) {
+            Layer layer = layers.get(currentLayerIndex);
             if (layer.isVisible) {
                 layerPaint.setAlpha((int) (layer.opacity * 255));
-                canvas.drawBitmap(layer.bitmap, 0, 0, layerPaint);
+                layer.tiles.drawTo(canvas, layerPaint, clipBounds);
 
-                if (i == currentLayerIndex) {
-                    if (currentShape != ShapeType.NONE) {
-                        drawSymmetricShape(canvas, paint, startX, startY, lastX, lastY, currentShape);
-                    } else if (!currentPath.isEmpty() && !isEraserMode && !isFillMode && !isPickerMode && !isTextMode && !isSelectMode && !isMoveMode) {
-                        drawSymmetricPath(canvas, currentPath, paint);
-                    }
+                // Eraser strokes cut straight into the layer; shapes are never drawn with the eraser
+                if (isStroking && !isEraserMode) {
+                    strokeBufferPaint.setAlpha(currentAlpha);
+                    strokeBuffer.drawTo(canvas, strokeBufferPaint, clipBounds);
                 }
             }
         }
 
+        if (currentLayerIndex < layers.size() - 1) {
+            aboveCache = updateCache(aboveCache, aboveCacheDirty, currentLayerIndex + 1, layers.size());
+            aboveCacheDirty = false;
+            if (aboveCache != null) canvas.drawBitmap(aboveCache, 0, 0, null);
+        }
+
         if (isSelectMode && selectionRect != null) {
             canvas.drawRect(selectionRect, selectionPaint);
         }
 
-        if (isMoveMode && selectedBitmap != null) {
-            canvas.drawBitmap(selectedBitmap, selectedBitmapX, selectedBitmapY, null);
-            canvas.drawRect(selectedBitmapX, selectedBitmapY, 
-                           selectedBitmapX + selectedBitmap.getWidth(), 
-                           selectedBitmapY + selectedBitmap.getHeight(), selectionPaint);
+        if (isSelectMode && lassoPointCount > 0) {
+            canvas.drawPath(lassoPath, selectionPaint);
+        }
+
+        if (isSelectMode && selectionMask != null && !selectionMask.isEmpty()) {
+            canvas.drawBitmap(selectionMask.getAlphaBitmap(), 0, 0, selectionMaskPaint);
+        }
+
+        // Still drawn while a transform is being committed, so the selection never blinks out
+        if (floatingSelection != null) {
+            floatingSelection.draw(canvas, selectionPaint, isMoveMode ? handleRadius() : 0);
+        }
+
+        if (isStroking && !tipPath.isEmpty()) {
+            drawSymmetricTip(canvas);
         }
 
         canvas.restore();
+        if (isPicking && composite != null) {
+            drawLoupe(canvas);
+        }
     }
 
-    private void drawSymmetricPath(Canvas canvas, Path path, Paint p) {
+    // Returns a bitmap holding layers [from, to) flattened, or null if none of them are visible
+    private Bitmap updateCache(Bitmap cache, boolean dirty, int from, int to) {
+        boolean anyVisible = false;
+        for (int i = from; i < to; i++) {
+            if (layers.get(i).isVisible) {
+                anyVisible = true;
+                break;
+            }
+        }
+        if (!anyVisible || getWidth() <= 0 || getHeight() <= 0) {
+            if (cache != null) cache.recycle();
+            return null;
+        }
+        if (cache == null || cache.getWidth() != getWidth() || cache.getHeight() != getHeight()) {
+            if (cache != null) cache.recycle();
+            cache = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
+            dirty = true;
+        }
+        if (dirty) {
+            cache.eraseColor(Color.TRANSPARENT);
+            cacheCanvas.setBitmap(cache);
+            for (int i = from; i < to; i++) {
+                Layer layer = layers.get(i);
+                if (layer.isVisible) {
+                    layerPaint.setAlpha((int) (layer.opacity * 255));
+                    layer.tiles.drawTo(cacheCanvas, layerPaint);
+                }
+            }
+            cacheCanvas.setBitmap(null);
+        }
+        return cache;
+    }
+
+    // Call after changing anything other than the active layer's pixels (order, visibility, opacity, ...)
+    public synchronized void invalidateLayerCache() {
+        belowCacheDirty = true;
+        aboveCacheDirty = true;
+        invalidateComposite(null);
+        invalidate();
+    }
+
+    // Null bounds marks the whole composite stale
+    private void invalidateComposite(RectF bounds) {
+        if (bounds == null) {
+            compositeDirtyRect.set(0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        } else {
+            compositeDirtyRect.union((int) Math.floor(bounds.left), (int) Math.floor(bounds.top),
+                    (int) Math.ceil(bounds.right), (int) Math.ceil(bounds.bottom));
+        }
+    }
+
+    // Brings the composite up to date, redrawing only the area that changed since the last call
+    private Bitmap updateComposite() {
+        TiledBitmap size = layers.get(0).tiles;
+        int w = Math.max(1, size.getWidth());
+        int h = Math.max(1, size.getHeight());
+        if (composite == null || composite.getWidth() != w || composite.getHeight() != h) {
+            if (composite != null) composite.recycle();
+            composite = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+            compositePixels = new int[w * h];
+            compositeDirtyRect.set(0, 0, w, h);
+        }
+        if (compositeDirtyRect.intersect(0, 0, w, h)) {
+            cacheCanvas.setBitmap(composite);
+            cacheCanvas.save();
+            cacheCanvas.clipRect(compositeDirtyRect);
+            cacheCanvas.drawColor(backgroundColor, PorterDuff.Mode.SRC);
+            for (Layer layer : layers) {
+                if (layer.isVisible) {
+                    layerPaint.setAlpha((int) (layer.opacity * 255));
+                    layer.tiles.drawTo(cacheCanvas, layerPaint, compositeDirtyRect);
+                }
+            }
+            cacheCanvas.restore();
+            cacheCanvas.setBitmap(null);
+            composite.getPixels(compositePixels, compositeDirtyRect.top * w + compositeDirtyRect.left, w,
+                    compositeDirtyRect.left, compositeDirtyRect.top, compositeDirtyRect.width(), compositeDirtyRect.height());
+        }
+        compositeDirtyRect.setEmpty();
+        return composite;
+    }
+
+    private void drawSymmetricDabs(Canvas canvas, Paint p) {
         if (symmetryType == SymmetryType.NONE) {
-            canvas.drawPath(path, p);
+            brushEngine.drawDabs(canvas, p);
             return;
         }
 
@@ -340,18 +807,18 @@ public class DrawingView extends View {
         float centerY = getHeight() / 2f;
 
         canvas.save();
-        canvas.drawPath(path, p);
+        brushEngine.drawDabs(canvas, p);
 
         if (symmetryType == SymmetryType.VERTICAL) {
             canvas.scale(-1, 1, centerX, centerY);
-            canvas.drawPath(path, p);
+            brushEngine.drawDabs(canvas, p);
         } else if (symmetryType == SymmetryType.HORIZONTAL) {
             canvas.scale(1, -1, centerX, centerY);
-            canvas.drawPath(path, p);
+            brushEngine.drawDabs(canvas, p);
         } else if (symmetryType == SymmetryType.RADIAL) {
             for (int i = 1; i < radialSlices; i++) {
                 canvas.rotate(360f / radialSlices, centerX, centerY);
-                canvas.drawPath(path, p);
+                brushEngine.drawDabs(canvas, p);
             }
         }
         canvas.restore();
@@ -384,6 +851,46 @@ public class DrawingView extends View {
         canvas.restore();
     }
 
+    private void shapeBounds(float x1, float y1, float x2, float y2, ShapeType shape, RectF out) {
+        if (shape == ShapeType.CIRCLE) {
+            float radius = (float) Math.sqrt(Math.pow(x2 - x1, 2) + Math.pow(y2 - y1, 2));
+            out.set(x1 - radius, y1 - radius, x1 + radius, y1 + radius);
+        } else {
+            out.set(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2));
+        }
+    }
+
+    private void strokeBounds(RectF bounds) {
+        float pad = currentStrokeWidth / 2f + 2;
+        if (!isEraserMode && currentHardness < 100) {
+            pad += (currentStrokeWidth / 2f) * (1f - (currentHardness / 100f)) * 3;
+        }
+        bounds.inset(-pad, -pad);
+    }
+
+    // Grows bounds to cover every mirrored copy produced by the active symmetry mode
+    private void symmetricBounds(RectF bounds) {
+        if (symmetryType == SymmetryType.NONE) return;
+        float centerX = getWidth() / 2f;
+        float centerY = getHeight() / 2f;
+        if (symmetryType == SymmetryType.RADIAL) {
+            symmetrySource.set(bounds);
+            for (int i = 1; i < radialSlices; i++) {
+                symmetryMatrix.setRotate(i * 360f / radialSlices, centerX, centerY);
+                symmetryMatrix.mapRect(symmetryMirror, symmetrySource);
+                bounds.union(symmetryMirror);
+            }
+        } else {
+            if (symmetryType == SymmetryType.VERTICAL) {
+                symmetryMatrix.setScale(-1, 1, centerX, centerY);
+            } else {
+                symmetryMatrix.setScale(1, -1, centerX, centerY);
+            }
+            symmetryMatrix.mapRect(symmetryMirror, bounds);
+            bounds.union(symmetryMirror);
+        }
+    }
+
     private void drawShape(Canvas canvas, Paint p, float x1, float y1, float x2, float y2, ShapeType shape) {
         switch (shape) {
             case LINE:
@@ -397,12 +904,12 @@ public class DrawingView extends View {
                 canvas.drawCircle(x1, y1, radius, p);
                 break;
             case TRIANGLE:
-                Path path = new Path();
-                path.moveTo(x1, y2);
-                path.lineTo(x2, y2);
-                path.lineTo((x1 + x2) / 2, y1);
-                path.close();
-                canvas.drawPath(path, p);
+                trianglePath.rewind();
+                trianglePath.moveTo(x1, y2);
+                trianglePath.lineTo(x2, y2);
+                trianglePath.lineTo((x1 + x2) / 2, y1);
+                trianglePath.close();
+                canvas.drawPath(trianglePath, p);
                 break;
         }
     }
@@ -412,31 +919,53 @@ public class DrawingView extends View {
         scaleGestureDetector.onTouchEvent(event);
         rotationGestureDetector.onTouchEvent(event);
 
+        if (renderThread != null && queueStrokeInput(event)) return true;
+        return handleTouch(event);
+    }
+
+    private synchronized boolean handleTouch(MotionEvent event) {
+        if (event.getActionMasked() == MotionEvent.ACTION_CANCEL) {
+            // A parent or a system gesture took the touch stream; nothing of the gesture may be left half-done
+            cancelGesture();
+            return true;
+        }
         if (event.getPointerCount() > 1 || isTransformMode) {
             handlePanning(event);
             return true;
         }
 
         if (currentLayerIndex == -1 || !layers.get(currentLayerIndex).isVisible) return false;
+        // The layer being filled or transformed in the background must not change until the result lands
+        if (parallelFill != null || transformCommit != null) return true;
 
         drawMatrix.invert(inverseMatrix);
-        float[] pts = {event.getX(), event.getY()};
-        inverseMatrix.mapPoints(pts);
-        float x = pts[0];
-        float y = pts[1];
+        mapTouchPoint(event.getX(), event.getY());
+        float x = touchPoint[0];
+        float y = touchPoint[1];
 
         Layer layer = layers.get(currentLayerIndex);
 
         switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
                 if (isPickerMode) {
-                    pickColor(x, y);
+                    isPicking = true;
+                    updateComposite();
+                    pickColor(x, y, event.getX(), event.getY());
                     return true;
                 }
                 if (isFillMode) {
-                    saveStateToUndo();
-                    int targetColor = layer.bitmap.getPixel((int) Math.max(0, Math.min(x, layer.bitmap.getWidth()-1)), (int) Math.max(0, Math.min(y, layer.bitmap.getHeight()-1)));
-                    performFloodFill((int) x, (int) y, targetColor, currentColor);
+                    Bitmap sample = isFillSampleAllLayers ? updateComposite() : null;
+                    int sampleX = (int) Math.max(0, Math.min(x, layer.tiles.getWidth() - 1));
+                    int sampleY = (int) Math.max(0, Math.min(y, layer.tiles.getHeight() - 1));
+                    int targetColor = sample != null ? sample.getPixel(sampleX, sampleY) : layer.tiles.getPixel(sampleX, sampleY);
+                    long layerPixels = (long) layer.tiles.getWidth() * layer.tiles.getHeight();
+                    if (isParallelFillEnabled && layerPixels * fillNanosPerPixel >= PARALLEL_FILL_MIN_NANOS) {
+                        startParallelFill(layer, sample, (int) x, (int) y, targetColor, currentColor);
+                        return true;
+                    }
+                    history.beginEdit(layer);
+                    performFloodFill(sample, (int) x, (int) y, targetColor, currentColor);
+                    if (history.commitEdit()) logFill(layer, fillBounds);
                     captureTimelapseFrame();
                     return true;
                 }
@@ -447,78 +976,112 @@ public class DrawingView extends View {
                     return true;
                 }
                 if (isSelectMode) {
-                    selectionRect = new RectF(x, y, x, y);
-                    invalidate();
+                    if (selectionTool != SelectionTool.RECT && selectionOp == SelectionMask.Op.REPLACE
+                            && selectionMask != null && selectionMask.contains((int) x, (int) y)) {
+                        // Dragging inside the selection picks it up
+                        cutSelection();
+                        if (floatingSelection != null) floatingSelection.begin(x, y, handleRadius());
+                    } else if (selectionTool == SelectionTool.WAND) {
+                        startWand(layer, (int) x, (int) y);
+                    } else if (selectionTool == SelectionTool.LASSO) {
+                        isWandActive = false;
+                        lassoPointCount = 0;
+                        lassoPath.rewind();
+                        lassoPath.moveTo(x, y);
+                        addLassoPoint(x, y);
+                    } else {
+                        clearSelection();
+                        selectionRect = new RectF(x, y, x, y);
+                    }
                     return true;
                 }
                 if (isMoveMode) {
-                    if (selectedBitmap != null && 
-                        x >= selectedBitmapX && x <= selectedBitmapX + selectedBitmap.getWidth() &&
-                        y >= selectedBitmapY && y <= selectedBitmapY + selectedBitmap.getHeight()) {
-                        moveStartX = x;
-                        moveStartY = y;
-                        return true;
-                    }
-                    return false;
+                    return floatingSelection != null && floatingSelection.begin(x, y, handleRadius());
                 }
-                saveStateToUndo();
-                startX = x;
-                startY = y;
-                lastX = x;
-                lastY = y;
-                if (currentShape == ShapeType.NONE) {
-                    currentPath.moveTo(x, y);
-                }
-                invalidate();
+                markInput(event.getEventTime());
+                requestLowLatencyInput(event);
+                beginStroke(layer, x, y, event.getEventTime());
                 return true;
 
             case MotionEvent.ACTION_MOVE:
+                if (isPicking) {
+                    pickColor(x, y, event.getX(), event.getY());
+                    return true;
+                }
                 if (isPickerMode || isFillMode || isTextMode) return true;
                 
                 if (isSelectMode) {
+                    if (lassoPointCount > 0) {
+                        segmentRect.set(lassoPoints[lassoPointCount * 2 - 2], lassoPoints[lassoPointCount * 2 - 1],
+                                lassoPoints[lassoPointCount * 2 - 2], lassoPoints[lassoPointCount * 2 - 1]);
+                        // Every sample batched into this event goes into the outline; one redraw covers them all
+                        for (int h = 0; h < event.getHistorySize(); h++) {
+                            mapTouchPoint(event.getHistoricalX(h), event.getHistoricalY(h));
+                            appendLassoPoint(touchPoint[0], touchPoint[1]);
+                        }
+                        appendLassoPoint(x, y);
+                        segmentRect.inset(-selectionPaint.getStrokeWidth() * 2, -selectionPaint.getStrokeWidth() * 2);
+                        invalidateViewRect(segmentRect);
+                        return true;
+                    }
+                    if (selectionRect == null) return true;
+                    segmentRect.set(selectionRect);
+                    segmentRect.sort();
                     selectionRect.right = x;
                     selectionRect.bottom = y;
-                    invalidate();
+                    dirtyRect.set(selectionRect);
+                    dirtyRect.sort();
+                    segmentRect.union(dirtyRect);
+                    segmentRect.inset(-selectionPaint.getStrokeWidth() * 2, -selectionPaint.getStrokeWidth() * 2);
+                    invalidateLayerRect(segmentRect);
                     return true;
                 }
 
                 if (isMoveMode) {
-                    if (selectedBitmap != null) {
-                        float dx = x - moveStartX;
-                        float dy = y - moveStartY;
-                        selectedBitmapX += dx;
-                        selectedBitmapY += dy;
-                        moveStartX = x;
-                        moveStartY = y;
-                        invalidate();
+                    if (floatingSelection != null && floatingSelection.isTransforming()) {
+                        floatingSelection.getBounds(segmentRect);
+                        floatingSelection.drag(x, y);
+                        floatingSelection.getBounds(dirtyRect);
+                        segmentRect.union(dirtyRect);
+                        // Room for the handles, which sit outside the selection
+                        float pad = handleRadius() * 5;
+                        segmentRect.inset(-pad, -pad);
+                        // Only the floating bitmap moves; the layer and the composite stay as they are
+                        invalidateViewRect(segmentRect);
                     }
                     return true;
                 }
 
-                if (currentShape != ShapeType.NONE) {
-                    lastX = x;
-                    lastY = y;
-                } else {
-                    float midX = (x + lastX) / 2;
-                    float midY = (y + lastY) / 2;
-                    currentPath.quadTo(lastX, lastY, midX, midY);
-                    
-                    if (isEraserMode) {
-                        drawSymmetricPath(layer.canvas, currentPath, paint);
-                        currentPath.reset();
-                        currentPath.moveTo(midX, midY);
-                    }
-                    lastX = x;
-                    lastY = y;
+                // Undo, redo or removing a layer from another view may have ended the stroke mid-gesture
+                if (!isStroking) return true;
+                markInput(event.getEventTime());
+                // Fast strokes and stylus input batch several samples per event; all of them
+                // are walked before anything is drawn, so the batch costs one draw and one redraw
+                for (int h = 0; h < event.getHistorySize(); h++) {
+                    mapTouchPoint(event.getHistoricalX(h), event.getHistoricalY(h));
+                    strokeTo(touchPoint[0], touchPoint[1], event.getHistoricalEventTime(h));
                 }
-                invalidate();
+                strokeTo(x, y, event.getEventTime());
+                finishStrokeBatch(layer);
                 break;
 
             case MotionEvent.ACTION_UP:
+                if (isPicking) {
+                    pickColor(x, y, event.getX(), event.getY());
+                    isPicking = false;
+                    invalidateLoupe();
+                    setColor(pickedColor);
+                    if (colorPickedListener != null) {
+                        colorPickedListener.onColorPicked(pickedColor);
+                    }
+                    return true;
+                }
                 if (isPickerMode || isFillMode || isTextMode) return true;
                 
                 if (isSelectMode) {
-                    if (selectionRect != null) {
+                    if (lassoPointCount > 0) {
+                        finishLasso(layer);
+                    } else if (selectionRect != null) {
                         selectionRect.sort();
                         if (selectionRect.width() > 5 && selectionRect.height() > 5) {
                             cutSelection();
@@ -530,21 +1093,418 @@ public class DrawingView extends View {
                     return true;
                 }
 
-                if (isMoveMode) return true;
-
-                if (currentShape != ShapeType.NONE) {
-                    drawSymmetricShape(layer.canvas, paint, startX, startY, x, y, currentShape);
-                } else {
-                    drawSymmetricPath(layer.canvas, currentPath, paint);
-                    currentPath.reset();
+                if (isMoveMode) {
+                    if (floatingSelection != null && floatingSelection.isTransforming()) {
+                        // Swap the proxy back for the full bitmap
+                        floatingSelection.end();
+                        invalidate();
+                    }
+                    return true;
                 }
-                invalidate();
-                captureTimelapseFrame();
+
+                if (isStroking) endStroke(layer, x, y);
                 break;
         }
         return true;
     }
 
+    /**
+     * Render thread mode: brush and shape gestures are mapped to layer coordinates and queued
+     * for the render thread instead of being drawn here, so the UI thread never waits for the
+     * document. Returns false for events that have to go through handleTouch().
+     */
+    private boolean queueStrokeInput(MotionEvent event) {
+        int action = event.getAction();
+        if (action == MotionEvent.ACTION_CANCEL) {
+            if (!isQueueingStroke) return false;
+            isQueueingStroke = false;
+            while (!touchQueue.offer(TouchQueue.CANCEL, 0, 0, event.getEventTime())) {
+                Thread.yield();
+            }
+            renderThread.requestRender();
+            return true;
+        }
+        if (event.getPointerCount() > 1 || isTransformMode) return false;
+        if (action == MotionEvent.ACTION_DOWN) {
+            isQueueingStroke = !isPickerMode && !isFillMode && !isTextMode && !isSelectMode && !isMoveMode
+                    && currentLayerIndex != -1 && layers.get(currentLayerIndex).isVisible
+                    && parallelFill == null && transformCommit == null;
+            if (!isQueueingStroke) return false;
+            requestLowLatencyInput(event);
+        } else if (!isQueueingStroke) {
+            return false;
+        }
+
+        // drawMatrix only changes on this thread, so it can be read without the lock
+        drawMatrix.invert(queueMatrix);
+        if (action == MotionEvent.ACTION_MOVE) {
+            for (int h = 0; h < event.getHistorySize(); h++) {
+                queueSample(TouchQueue.MOVE, event.getHistoricalX(h), event.getHistoricalY(h), event.getHistoricalEventTime(h));
+            }
+            queueSample(TouchQueue.MOVE, event.getX(), event.getY(), event.getEventTime());
+        } else if (action == MotionEvent.ACTION_DOWN || action == MotionEvent.ACTION_UP) {
+            queueSample(action == MotionEvent.ACTION_DOWN ? TouchQueue.DOWN : TouchQueue.UP,
+                    event.getX(), event.getY(), event.getEventTime());
+            if (action == MotionEvent.ACTION_UP) isQueueingStroke = false;
+        }
+        renderThread.requestRender();
+        return true;
+    }
+
+    private void queueSample(int action, float screenX, float screenY, long eventTime) {
+        queuePoint[0] = screenX;
+        queuePoint[1] = screenY;
+        queueMatrix.mapPoints(queuePoint);
+        while (!touchQueue.offer(action, queuePoint[0], queuePoint[1], eventTime)) {
+            // Only if the render thread is a whole queue behind; a move can be dropped, the stroke's ends cannot
+            if (action == TouchQueue.MOVE) return;
+            Thread.yield();
+        }
+    }
+
+    // Render thread: applies the queued stroke input, batching consecutive moves into one draw
+    private synchronized void applyQueuedInput() {
+        int count = touchQueue.available();
+        if (count == 0) return;
+        if (isReleased || renderThread == null || currentLayerIndex == -1) {
+            touchQueue.remove(count);
+            return;
+        }
+        Layer layer = layers.get(currentLayerIndex);
+        boolean isBatching = false;
+        for (int i = 0; i < count; i++) {
+            int action = touchQueue.getAction(i);
+            float x = touchQueue.getX(i);
+            float y = touchQueue.getY(i);
+            if (action == TouchQueue.MOVE) {
+                if (isStroking) {
+                    strokeTo(x, y, touchQueue.getEventTime(i));
+                    isBatching = true;
+                }
+                continue;
+            }
+            if (isBatching) {
+                finishStrokeBatch(layer);
+                isBatching = false;
+            }
+            if (action == TouchQueue.DOWN) {
+                beginStroke(layer, x, y, touchQueue.getEventTime(i));
+            } else if (action == TouchQueue.CANCEL) {
+                if (isStroking) cancelStroke();
+            } else if (isStroking) {
+                endStroke(layer, x, y);
+            }
+        }
+        if (isBatching) finishStrokeBatch(layer);
+        touchQueue.remove(count);
+    }
+
+    private void requestLowLatencyInput(MotionEvent event) {
+        if (isLowLatencyMode && Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            // Lasts until ACTION_UP, so the rest of the stroke skips the per-frame batching
+            requestUnbufferedDispatch(event);
+        }
+    }
+
+    private void beginStroke(Layer layer, float x, float y, long eventTime) {
+        // A stroke that never saw its UP or CANCEL must not leak into this one
+        if (isStroking) cancelStroke();
+        history.beginEdit(layer);
+        startX = x;
+        startY = y;
+        lastX = x;
+        lastY = y;
+        isStroking = true;
+        strokeDirtyRect.setEmpty();
+        if (strokeLog != null) {
+            logBrush();
+            strokeLog.setSymmetry(symmetryType, radialSlices, getWidth() / 2f, getHeight() / 2f);
+            strokeLog.beginStroke(x, y);
+        }
+        if (isLowLatencyMode) {
+            strokePredictor.reset();
+            strokePredictor.addSample(x, y, eventTime);
+        }
+        if (currentShape == ShapeType.NONE) {
+            dabPaint.setColor(currentColor);
+            dabPaint.setAlpha(255);
+            dabPaint.setXfermode(isEraserMode ? eraseXfermode : null);
+            brushEngine.begin(x, y);
+            stampDabs(layer);
+            brushEngine.clearDabs();
+        }
+    }
+
+    // Adds one sample to the stroke; nothing is drawn until finishStrokeBatch()
+    private void strokeTo(float x, float y, long eventTime) {
+        if (currentShape != ShapeType.NONE) {
+            // A shape only depends on its newest point
+            lastX = x;
+            lastY = y;
+            return;
+        }
+        brushTo(x, y);
+        if (strokeLog != null) strokeLog.strokeTo(x, y);
+        if (isLowLatencyMode && !isEraserMode) {
+            strokePredictor.addSample(x, y, eventTime);
+        }
+    }
+
+    private void finishStrokeBatch(Layer layer) {
+        if (currentShape != ShapeType.NONE) {
+            // The previous preview has to be erased as well as the new one drawn
+            segmentRect.set(strokeDirtyRect);
+            rasterizeShape(lastX, lastY);
+            segmentRect.union(strokeDirtyRect);
+            invalidateLayerRect(segmentRect);
+        } else {
+            stampDabs(layer);
+            brushEngine.clearDabs();
+            if (isLowLatencyMode && !isEraserMode) {
+                updateStrokeTip();
+            }
+        }
+    }
+
+    private void endStroke(Layer layer, float x, float y) {
+        dirtyRect.set(strokeDirtyRect);
+        if (currentShape != ShapeType.NONE) {
+            if (strokeDirtyRect.isEmpty() || x != lastX || y != lastY) {
+                rasterizeShape(x, y);
+                dirtyRect.union(strokeDirtyRect);
+            }
+            commitStrokeBuffer(layer);
+        } else if (!isEraserMode) {
+            commitStrokeBuffer(layer);
+        }
+        isStroking = false;
+        clearStrokeTip();
+        if (history.commitEdit() && strokeLog != null) {
+            if (currentShape != ShapeType.NONE) {
+                strokeLog.addShape(currentLayerIndex, currentShape, startX, startY, shapeEndX, shapeEndY);
+            } else {
+                strokeLog.endStroke(currentLayerIndex);
+            }
+        }
+        invalidateLayerRect(dirtyRect);
+        captureTimelapseFrame();
+    }
+
+    // Drops the buffered stroke or shape preview. Only what an eraser already cut from the layer
+    // stays, and is committed like a finished stroke since it is already visible.
+    private void cancelStroke() {
+        dirtyRect.set(strokeDirtyRect);
+        strokeBuffer.clearTiles(strokeDirtyRect);
+        strokeDirtyRect.setEmpty();
+        isStroking = false;
+        clearStrokeTip();
+        if (history.commitEdit() && strokeLog != null) {
+            strokeLog.endStroke(currentLayerIndex);
+        }
+        invalidateLayerRect(dirtyRect);
+        captureTimelapseFrame();
+    }
+
+    /**
+     * Ends the edit a stroke in progress or a floating selection left open, logging it as its
+     * own end would; committing it bare would leave it out of the stroke log. Putting back a
+     * scaled or rotated selection starts a transform, so callers check deferUntilTransformed().
+     */
+    private void closeOpenEdit() {
+        if (isMoveMode) applyMove();
+        if (isStroking) cancelStroke();
+    }
+
+    private void cancelGesture() {
+        if (isPicking) {
+            isPicking = false;
+            invalidateLoupe();
+        }
+        if (isStroking) cancelStroke();
+    }
+
+    private void markInput(long eventTime) {
+        if (frameStatsWindow != null && pendingInputNanos == 0) {
+            pendingInputNanos = eventTime * 1_000_000L;
+        }
+    }
+
+    // Rebuilds the preview tip: from the end of the inked stroke through the newest sample,
+    // which the midpoint smoothing has not reached yet, and on along the predicted points
+    private void updateStrokeTip() {
+        segmentRect.set(tipBounds);
+        tipPath.rewind();
+        float penX = brushEngine.getPenX();
+        float penY = brushEngine.getPenY();
+        tipPath.moveTo(penX, penY);
+        tipPath.lineTo(lastX, lastY);
+        tipBounds.set(Math.min(penX, lastX), Math.min(penY, lastY), Math.max(penX, lastX), Math.max(penY, lastY));
+        int count = strokePredictor.predict(predictedPoints);
+        for (int i = 0; i < count; i++) {
+            tipPath.lineTo(predictedPoints[i * 2], predictedPoints[i * 2 + 1]);
+            tipBounds.union(predictedPoints[i * 2], predictedPoints[i * 2 + 1]);
+        }
+        strokeBounds(tipBounds);
+        symmetricBounds(tipBounds);
+        tipPaint.setColor(currentColor);
+        tipPaint.setAlpha(currentAlpha);
+        tipPaint.setStrokeWidth(currentStrokeWidth);
+        // The tip never touches the layers, so only the view needs redrawing
+        segmentRect.union(tipBounds);
+        invalidateViewRect(segmentRect);
+    }
+
+    private void clearStrokeTip() {
+        if (tipPath.isEmpty()) return;
+        tipPath.rewind();
+        invalidateViewRect(tipBounds);
+        tipBounds.setEmpty();
+    }
+
+    private void drawSymmetricTip(Canvas canvas) {
+        canvas.drawPath(tipPath, tipPaint);
+        if (symmetryType == SymmetryType.NONE) return;
+
+        float centerX = getWidth() / 2f;
+        float centerY = getHeight() / 2f;
+
+        canvas.save();
+        if (symmetryType == SymmetryType.VERTICAL) {
+            canvas.scale(-1, 1, centerX, centerY);
+            canvas.drawPath(tipPath, tipPaint);
+        } else if (symmetryType == SymmetryType.HORIZONTAL) {
+            canvas.scale(1, -1, centerX, centerY);
+            canvas.drawPath(tipPath, tipPaint);
+        } else if (symmetryType == SymmetryType.RADIAL) {
+            for (int i = 1; i < radialSlices; i++) {
+                canvas.rotate(360f / radialSlices, centerX, centerY);
+                canvas.drawPath(tipPath, tipPaint);
+            }
+        }
+        canvas.restore();
+    }
+
+    // Maps a point in view coordinates into touchPoint, in layer coordinates; inverseMatrix must be current
+    private void mapTouchPoint(float screenX, float screenY) {
+        touchPoint[0] = screenX;
+        touchPoint[1] = screenY;
+        inverseMatrix.mapPoints(touchPoint);
+    }
+
+    // Extends the brush stroke to (x, y) through the midpoint of the last segment
+    private void brushTo(float x, float y) {
+        brushEngine.quadTo(lastX, lastY, (x + lastX) / 2, (y + lastY) / 2);
+        lastX = x;
+        lastY = y;
+    }
+
+    private void appendLassoPoint(float x, float y) {
+        lassoPath.lineTo(x, y);
+        addLassoPoint(x, y);
+        segmentRect.union(x, y);
+    }
+
+    private void invalidateLayerRect(RectF bounds) {
+        invalidateComposite(bounds);
+        invalidateViewRect(bounds);
+    }
+
+    // Redraws the part of the view showing bounds (in layer coordinates) without touching the composite
+    private void invalidateViewRect(RectF bounds) {
+        CanvasRenderThread thread = renderThread;
+        if (thread != null) {
+            // The surface is redrawn whole
+            thread.requestRender();
+            return;
+        }
+        drawMatrix.mapRect(screenDirtyRect, bounds);
+        invalidate((int) Math.floor(screenDirtyRect.left) - 1, (int) Math.floor(screenDirtyRect.top) - 1,
+                (int) Math.ceil(screenDirtyRect.right) + 1, (int) Math.ceil(screenDirtyRect.bottom) + 1);
+    }
+
+    // Draws only the dabs of the newest segment. Brush dabs go to the stroke buffer at full
+    // opacity so overlapping segments never darken; eraser dabs cut straight into the layer.
+    private void stampDabs(Layer layer) {
+        if (!brushEngine.getDabBounds(segmentRect)) return;
+        symmetricBounds(segmentRect);
+        strokeDirtyRect.union(segmentRect);
+        if (isEraserMode) {
+            eraseLayer(layer, segmentRect, dabDrawer);
+        } else {
+            strokeBuffer.draw(segmentRect, dabDrawer);
+        }
+        invalidateLayerRect(segmentRect);
+    }
+
+    // Replaces the shape preview in the stroke buffer with the shape ending at (endX, endY)
+    private void rasterizeShape(float endX, float endY) {
+        strokeBuffer.clearTiles(strokeDirtyRect);
+        shapeBounds(startX, startY, endX, endY, currentShape, strokeDirtyRect);
+        strokeBounds(strokeDirtyRect);
+        symmetricBounds(strokeDirtyRect);
+        shapeEndX = endX;
+        shapeEndY = endY;
+        strokeBuffer.draw(strokeDirtyRect, shapeDrawer);
+    }
+
+    // Merges the buffered stroke into the layer tile by tile, erasing the buffer as it goes
+    private void commitStrokeBuffer(Layer layer) {
+        strokeBufferPaint.setAlpha(currentAlpha);
+        int size = TiledBitmap.TILE_SIZE;
+        int firstCol = Math.max(0, (int) Math.floor(strokeDirtyRect.left / size));
+        int firstRow = Math.max(0, (int) Math.floor(strokeDirtyRect.top / size));
+        int lastCol = Math.min(strokeBuffer.getColumns() - 1, (int) Math.ceil(strokeDirtyRect.right / size) - 1);
+        int lastRow = Math.min(strokeBuffer.getRows() - 1, (int) Math.ceil(strokeDirtyRect.bottom / size) - 1);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                Bitmap tile = strokeBuffer.getTile(col, row);
+                if (tile == null) continue;
+                strokeTile = tile;
+                strokeTileRect.set(col * size, row * size, (col + 1) * size, (row + 1) * size);
+                tileRect.set(strokeTileRect);
+                if (tileRect.intersect(strokeDirtyRect)) {
+                    paintLayer(layer, tileRect, strokeTileDrawer);
+                }
+                tile.eraseColor(Color.TRANSPARENT);
+            }
+        }
+        strokeTile = null;
+    }
+
+    private void paintLayer(Layer layer, RectF bounds, TiledBitmap.TileDrawer drawer) {
+        history.capture(bounds);
+        layer.tiles.draw(bounds, drawer);
+    }
+
+    // For drawers that only remove pixels, so erasing an empty area allocates no tiles
+    private void eraseLayer(Layer layer, RectF bounds, TiledBitmap.TileDrawer drawer) {
+        history.capture(bounds);
+        layer.tiles.draw(bounds, drawer, false);
+    }
+
+    private void logBrush() {
+        strokeLog.setBrush(currentColor, currentAlpha, currentStrokeWidth, currentHardness,
+                brushEngine.getSpacing(), isEraserMode);
+    }
+
+    // A fill is logged as its result: re-run at another size, its region would not match
+    private void logFill(Layer layer, Rect bounds) {
+        if (strokeLog == null) return;
+        logPixels(layer, new RectF(bounds));
+    }
+
+    // Logs a copy of the pixels of layer inside bounds as they are now; the log encodes it in the background
+    private void logPixels(Layer layer, RectF bounds) {
+        Rect region = new Rect();
+        bounds.roundOut(region);
+        if (!region.intersect(0, 0, layer.tiles.getWidth(), layer.tiles.getHeight())) return;
+        Bitmap pixels = Bitmap.createBitmap(region.width(), region.height(), Bitmap.Config.ARGB_8888);
+        Canvas pixelsCanvas = new Canvas(pixels);
+        pixelsCanvas.translate(-region.left, -region.top);
+        layer.tiles.drawTo(pixelsCanvas, null);
+        strokeLog.addPixels(layers.indexOf(layer), pixels, region.left, region.top);
+    }
+
     @Override
     public boolean performClick() {
         return super.performClick();
@@ -592,245 +1552,550 @@ public class DrawingView extends View {
         }
     }
 
+    // Lifts the selection rectangle, or the selection mask if there is no rectangle, into a floating bitmap
     private void cutSelection() {
-        if (selectionRect == null || currentLayerIndex == -1) return;
-        saveStateToUndo();
+        if (currentLayerIndex == -1) return;
+        boolean isMasked = selectionRect == null;
+        if (isMasked && (selectionMask == null || selectionMask.isEmpty())) return;
         Layer layer = layers.get(currentLayerIndex);
-        
-        int left = (int) Math.max(0, selectionRect.left);
-        int top = (int) Math.max(0, selectionRect.top);
-        int right = (int) Math.min(layer.bitmap.getWidth(), selectionRect.right);
-        int bottom = (int) Math.min(layer.bitmap.getHeight(), selectionRect.bottom);
+
+        int left, top, right, bottom;
+        if (isMasked) {
+            Rect bounds = selectionMask.getBounds();
+            left = bounds.left;
+            top = bounds.top;
+            right = bounds.right;
+            bottom = bounds.bottom;
+        } else {
+            left = (int) Math.max(0, selectionRect.left);
+            top = (int) Math.max(0, selectionRect.top);
+            right = (int) Math.min(layer.tiles.getWidth(), selectionRect.right);
+            bottom = (int) Math.min(layer.tiles.getHeight(), selectionRect.bottom);
+        }
         
         if (right <= left || bottom <= top) return;
-
-        selectedBitmap = Bitmap.createBitmap(layer.bitmap, left, top, right - left, bottom - top);
-        selectedBitmapX = left;
-        selectedBitmapY = top;
-
-        Paint clearPaint = new Paint();
-        clearPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
-        layer.canvas.drawRect(selectionRect, clearPaint);
+        history.beginEdit(layer);
+
+        // Cropped to the selection so a move only drags this bitmap around
+        Bitmap selectedBitmap = Bitmap.createBitmap(right - left, bottom - top, Bitmap.Config.ARGB_8888);
+        Canvas selectionCanvas = new Canvas(selectedBitmap);
+        selectionCanvas.translate(-left, -top);
+        layer.tiles.drawTo(selectionCanvas, null);
+
+        final RectF cutRect = new RectF(left, top, right, bottom);
+        if (isMasked) {
+            // Keep only the selected pixels in the floating bitmap, and cut only those from the layer
+            final Bitmap maskBitmap = selectionMask.getAlphaBitmap();
+            selectionCanvas.drawBitmap(maskBitmap, 0, 0, maskKeepPaint);
+            eraseLayer(layer, cutRect, c -> c.drawBitmap(maskBitmap, 0, 0, maskCutPaint));
+            selectionMask.clear();
+        } else {
+            eraseLayer(layer, cutRect, c -> c.drawRect(cutRect, clearPaint));
+        }
+        invalidateComposite(cutRect);
+        moveDirtyRect.set(cutRect);
+        floatingSelection = new FloatingSelection(selectedBitmap, left, top);
         
         selectionRect = null;
+        isWandActive = false;
         isSelectMode = false;
         isMoveMode = true;
+        invalidate();
     }
 
-    public void applyMove() {
-        if (selectedBitmap != null && currentLayerIndex != -1) {
-            Layer layer = layers.get(currentLayerIndex);
-            layer.canvas.drawBitmap(selectedBitmap, selectedBitmapX, selectedBitmapY, null);
-            selectedBitmap.recycle();
-            selectedBitmap = null;
-            isMoveMode = false;
+    // Puts the floating selection back. A scaled or rotated one is resampled in the background
+    // and lands in completeMove(); touches are ignored until then.
+    public synchronized void applyMove() {
+        if (floatingSelection == null || transformCommit != null || currentLayerIndex == -1) return;
+        Layer layer = layers.get(currentLayerIndex);
+        floatingSelection.end();
+        isMoveMode = false;
+        if (floatingSelection.isTranslationOnly()) {
+            final Bitmap moved = floatingSelection.getBitmap();
+            final float left = Math.round(floatingSelection.getTranslateX());
+            final float top = Math.round(floatingSelection.getTranslateY());
+            dirtyRect.set(left, top, left + moved.getWidth(), top + moved.getHeight());
+            paintLayer(layer, dirtyRect, c -> c.drawBitmap(moved, left, top, null));
+            invalidateComposite(dirtyRect);
+            moveDirtyRect.union(dirtyRect);
+            finishMove(layer);
+            return;
+        }
+
+        transformLayer = layer;
+        final int generation = ++transformGeneration;
+        transformCommit = floatingSelection.resample(transformBounds, layer.tiles.getWidth(), layer.tiles.getHeight(), () -> {
+            if (generation == transformGeneration) completeMove();
+        });
+        if (transformCommit == null) {
+            // Moved entirely off the canvas
+            finishMove(layer);
+        } else {
             invalidate();
-            captureTimelapseFrame();
         }
     }
 
-    public void drawText(String text, float x, float y) {
+    // Writes a finished transform into the layer and runs whatever was deferred while it was resampled
+    private synchronized void completeMove() {
+        if (transformCommit == null || !transformCommit.isDone()) return;
+        Bitmap result;
+        try {
+            result = transformCommit.get();
+        } catch (InterruptedException | ExecutionException e) {
+            result = null;
+        }
+        transformCommit = null;
+        if (result != null) {
+            final Bitmap resampled = result;
+            final float left = transformBounds.left;
+            final float top = transformBounds.top;
+            dirtyRect.set(transformBounds);
+            paintLayer(transformLayer, dirtyRect, c -> c.drawBitmap(resampled, left, top, null));
+            invalidateComposite(dirtyRect);
+            moveDirtyRect.union(dirtyRect);
+            resampled.recycle();
+        }
+        Layer layer = transformLayer;
+        transformLayer = null;
+        // Switching layers is not deferred; the transformed layer may now be drawn from the caches
+        if (layer != layers.get(currentLayerIndex)) invalidateLayerCache();
+        finishMove(layer);
+        if (afterTransform.isEmpty()) return;
+        Runnable[] deferred = afterTransform.toArray(new Runnable[0]);
+        afterTransform.clear();
+        for (Runnable op : deferred) {
+            op.run();
+        }
+    }
+
+    /**
+     * The layer being transformed must not change until the resample lands, and the UI thread
+     * must not wait for it, so operations that would touch the document are queued instead.
+     * Returns true if op was queued.
+     */
+    private boolean deferUntilTransformed(Runnable op) {
+        if (transformCommit == null) return false;
+        afterTransform.add(op);
+        return true;
+    }
+
+    // Drops a transform still being resampled, for when the document is going away
+    private void discardTransform() {
+        if (transformCommit == null) return;
+        transformCommit.cancel(false);
+        transformCommit = null;
+        transformGeneration++;
+        transformLayer = null;
+        afterTransform.clear();
+    }
+
+    private void finishMove(Layer layer) {
+        if (history.commitEdit() && strokeLog != null) {
+            logPixels(layer, moveDirtyRect);
+        }
+        floatingSelection.recycle();
+        floatingSelection = null;
+        invalidate();
+        captureTimelapseFrame();
+    }
+
+    private float handleRadius() {
+        return HANDLE_RADIUS / drawMatrix.mapRadius(1f);
+    }
+
+    public synchronized void drawText(String text, float x, float y) {
+        if (deferUntilTransformed(() -> drawText(text, x, y))) return;
         if (currentLayerIndex != -1) {
-            saveStateToUndo();
             Layer layer = layers.get(currentLayerIndex);
+            history.beginEdit(layer);
             textPaint.setColor(currentColor);
             textPaint.setAlpha(currentAlpha);
             textPaint.setTextSize(currentStrokeWidth * 5);
-            layer.canvas.drawText(text, x, y, textPaint);
-            invalidate();
+            Rect textBounds = new Rect();
+            textPaint.getTextBounds(text, 0, text.length(), textBounds);
+            dirtyRect.set(textBounds);
+            dirtyRect.offset(x, y);
+            dirtyRect.inset(-2, -2);
+            paintLayer(layer, dirtyRect, c -> c.drawText(text, x, y, textPaint));
+            if (history.commitEdit() && strokeLog != null) {
+                logBrush();
+                strokeLog.addText(currentLayerIndex, text, x, y);
+            }
+            invalidateLayerRect(dirtyRect);
             captureTimelapseFrame();
         }
     }
 
-    private void pickColor(float x, float y) {
-        Bitmap pixel = Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
-        Canvas c = new Canvas(pixel);
-        c.drawColor(backgroundColor);
-        
-        c.save();
-        c.translate(-x, -y);
-        for (Layer layer : layers) {
-            if (layer.isVisible) {
-                layerPaint.setAlpha((int) (layer.opacity * 255));
-                c.drawBitmap(layer.bitmap, 0, 0, layerPaint);
-            }
-        }
-        c.restore();
-        
-        int color = pixel.getPixel(0, 0);
-        pixel.recycle();
-        
-        setColor(color);
-        if (colorPickedListener != null) {
-            colorPickedListener.onColorPicked(color);
+    // Samples the composite at layer point (x, y) and moves the loupe to screen point (screenX, screenY).
+    // The composite must be up to date; picking never changes it, so a drag only reads compositePixels.
+    private void pickColor(float x, float y, float screenX, float screenY) {
+        int w = composite.getWidth();
+        int h = composite.getHeight();
+        pickX = Math.max(0, Math.min((int) x, w - 1));
+        pickY = Math.max(0, Math.min((int) y, h - 1));
+        pickedColor = compositePixels[pickY * w + pickX];
+        invalidateLoupe();
+        loupeX = screenX;
+        loupeY = screenY;
+        invalidateLoupe();
+    }
+
+    // Where the loupe is drawn: above the finger, or below it near the top of the view
+    private void updateLoupeRect() {
+        float centerY = loupeY - LOUPE_RADIUS * 1.5f;
+        if (centerY - LOUPE_RADIUS < 0) centerY = loupeY + LOUPE_RADIUS * 1.5f;
+        float outer = LOUPE_RADIUS + loupeRingPaint.getStrokeWidth();
+        loupeRect.set(loupeX - outer, centerY - outer, loupeX + outer, centerY + outer);
+    }
+
+    private void invalidateLoupe() {
+        CanvasRenderThread thread = renderThread;
+        if (thread != null) {
+            // The loupe is drawn into the surface with everything else
+            thread.requestRender();
+            return;
         }
+        updateLoupeRect();
+        invalidate((int) loupeRect.left, (int) loupeRect.top, (int) Math.ceil(loupeRect.right), (int) Math.ceil(loupeRect.bottom));
     }
 
-    private boolean isSimilar(int c1, int c2, int tolerance) {
-        if (c1 == c2) return true;
-        int a1 = (c1 >> 24) & 0xff;
-        int r1 = (c1 >> 16) & 0xff;
-        int g1 = (c1 >> 8) & 0xff;
-        int b1 = c1 & 0xff;
-
-        int a2 = (c2 >> 24) & 0xff;
-        int r2 = (c2 >> 16) & 0xff;
-        int g2 = (c2 >> 8) & 0xff;
-        int b2 = c2 & 0xff;
-
-        return Math.abs(a1 - a2) <= tolerance &&
-                Math.abs(r1 - r2) <= tolerance &&
-                Math.abs(g1 - g2) <= tolerance &&
-                Math.abs(b1 - b2) <= tolerance;
+    // Draws the composite around the picked pixel magnified, with nearest-neighbour scaling, in screen coordinates
+    private void drawLoupe(Canvas canvas) {
+        updateLoupeRect();
+        float cx = loupeRect.centerX();
+        float cy = loupeRect.centerY();
+        canvas.save();
+        loupePath.rewind();
+        loupePath.addCircle(cx, cy, LOUPE_RADIUS, Path.Direction.CW);
+        canvas.clipPath(loupePath);
+        canvas.drawColor(Color.GRAY);
+        loupeMatrix.setTranslate(-(pickX + 0.5f), -(pickY + 0.5f));
+        loupeMatrix.postScale(LOUPE_ZOOM, LOUPE_ZOOM);
+        loupeMatrix.postTranslate(cx, cy);
+        canvas.drawBitmap(composite, loupeMatrix, loupePaint);
+        float half = LOUPE_ZOOM / 2;
+        canvas.drawRect(cx - half, cy - half, cx + half, cy + half, selectionPaint);
+        canvas.restore();
+        loupeRingPaint.setColor(pickedColor | 0xFF000000);
+        canvas.drawCircle(cx, cy, LOUPE_RADIUS + loupeRingPaint.getStrokeWidth() / 2, loupeRingPaint);
     }
 
-    private void performFloodFill(int x, int y, int targetColor, int replacementColor) {
+    // sample, if not null, is the composite the region is searched in instead of the layer
+    private void performFloodFill(Bitmap sample, int x, int y, int targetColor, int replacementColor) {
         replacementColor = (currentAlpha << 24) | (replacementColor & 0xFFFFFF);
-        if (targetColor == replacementColor) return;
+        if (sample == null && targetColor == replacementColor) return;
 
-        Bitmap bitmap = layers.get(currentLayerIndex).bitmap;
+        TiledBitmap bitmap = layers.get(currentLayerIndex).tiles;
         int width = bitmap.getWidth();
         int height = bitmap.getHeight();
-        
+
         if (x < 0 || x >= width || y < 0 || y >= height) return;
 
-        int[] pixels = new int[width * height];
+        long fillStart = System.nanoTime();
+        int[] pixels = floodFill.obtainPixels(width * height);
         bitmap.getPixels(pixels, 0, width, 0, 0, width, height);
+        int[] samples = null;
+        if (sample != null) {
+            samples = floodFill.obtainSamples(width * height);
+            sample.getPixels(samples, 0, width, 0, 0, width, height);
+        }
+        if (floodFill.fill(pixels, samples, width, height, x, y, targetColor, replacementColor, fillTolerance)) {
+            floodFill.getBounds(fillBounds);
+            dirtyRect.set(fillBounds);
+            history.capture(dirtyRect);
+            bitmap.setPixels(pixels, fillBounds.top * width + fillBounds.left, width,
+                    fillBounds.left, fillBounds.top, fillBounds.width(), fillBounds.height());
+            invalidateLayerRect(dirtyRect);
+        }
+        float measured = (System.nanoTime() - fillStart) / (float) ((long) width * height);
+        fillNanosPerPixel = (fillNanosPerPixel + measured) / 2;
+    }
 
-        int tolerance = 250;
-        boolean[] visited = new boolean[width * height];
-        Stack<Point> stack = new Stack<>();
-        stack.push(new Point(x, y));
-
-        while (!stack.isEmpty()) {
-            Point p = stack.pop();
-            int px = p.x;
-            int py = p.y;
+    private void startWand(Layer layer, int x, int y) {
+        int width = layer.tiles.getWidth();
+        int height = layer.tiles.getHeight();
+        if (x < 0 || x >= width || y < 0 || y >= height) return;
 
-            if (visited[py * width + px] || !isSimilar(pixels[py * width + px], targetColor, tolerance)) continue;
+        ensureSelectionMask(width, height);
+        selectionMask.copyBitsTo(selectionBase);
 
-            int left = px;
-            while (left > 0 && !visited[py * width + left - 1] && isSimilar(pixels[py * width + left - 1], targetColor, tolerance)) {
-                left--;
-            }
+        // The samples stay in the fill's buffer so a tolerance change only has to re-walk the spans
+        int[] samples = floodFill.obtainSamples(width * height);
+        Bitmap sample = isFillSampleAllLayers ? updateComposite() : null;
+        if (sample != null) {
+            sample.getPixels(samples, 0, width, 0, 0, width, height);
+        } else {
+            layer.tiles.getPixels(samples, 0, width, 0, 0, width, height);
+        }
+        wandX = x;
+        wandY = y;
+        isWandActive = true;
+        runWand();
+    }
+
+    private void runWand() {
+        int width = selectionMask.getWidth();
+        int height = selectionMask.getHeight();
+        int[] samples = floodFill.obtainSamples(width * height);
+        floodFill.reset(null, samples, width, height, samples[wandY * width + wandX], 0, wandTolerance);
+        floodFill.fillFrom(wandX, wandY);
+        selectionMask.combine(selectionBase, floodFill.getFilledMask(), selectionOp);
+        invalidate();
+    }
 
-            int right = px;
-            while (right < width - 1 && !visited[py * width + right + 1] && isSimilar(pixels[py * width + right + 1], targetColor, tolerance)) {
-                right++;
-            }
+    private void ensureSelectionMask(int width, int height) {
+        if (selectionMask != null && selectionMask.getWidth() == width && selectionMask.getHeight() == height) return;
+        if (selectionMask != null) selectionMask.recycle();
+        selectionMask = new SelectionMask(width, height);
+        selectionBase = new long[selectionMask.getBits().length];
+        selectionScratch = new long[selectionMask.getBits().length];
+    }
 
-            for (int i = left; i <= right; i++) {
-                int currIdx = py * width + i;
-                pixels[currIdx] = replacementColor;
-                visited[currIdx] = true;
+    private void addLassoPoint(float x, float y) {
+        if (lassoPointCount * 2 + 2 > lassoPoints.length) {
+            lassoPoints = Arrays.copyOf(lassoPoints, lassoPoints.length * 2);
+        }
+        lassoPoints[lassoPointCount * 2] = x;
+        lassoPoints[lassoPointCount * 2 + 1] = y;
+        lassoPointCount++;
+    }
+
+    // Closes the lasso and combines its even-odd interior with the current selection
+    private void finishLasso(Layer layer) {
+        if (lassoPointCount >= 3) {
+            ensureSelectionMask(layer.tiles.getWidth(), layer.tiles.getHeight());
+            selectionMask.rasterizePolygon(lassoPoints, lassoPointCount, selectionScratch);
+            selectionMask.combine(selectionMask.getBits(), selectionScratch, selectionOp);
+        } else if (selectionOp == SelectionMask.Op.REPLACE) {
+            clearSelection();
+        }
+        lassoPointCount = 0;
+        lassoPath.rewind();
+    }
 
-                if (py > 0) {
-                    int upIdx = (py - 1) * width + i;
-                    if (!visited[upIdx] && isSimilar(pixels[upIdx], targetColor, tolerance)) {
-                        if (i == left || visited[upIdx - 1] || !isSimilar(pixels[upIdx - 1], targetColor, tolerance)) {
-                            stack.push(new Point(i, py - 1));
-                        }
+    private void startParallelFill(Layer layer, Bitmap sample, int x, int y, int targetColor, int replacementColor) {
+        replacementColor = (currentAlpha << 24) | (replacementColor & 0xFFFFFF);
+        if (sample == null && targetColor == replacementColor) return;
+        if (x < 0 || x >= layer.tiles.getWidth() || y < 0 || y >= layer.tiles.getHeight()) return;
+
+        closeOpenEdit();
+        // The layer must not change under the fill; the touch is dropped like any during a transform
+        if (transformCommit != null) return;
+        parallelFill = new ParallelFloodFill(layer.tiles, sample, x, y, targetColor, replacementColor, fillTolerance,
+                new ParallelFloodFill.Callback() {
+                    @Override
+                    public void onProgress(int percent) {
+                        if (fillProgressListener != null) fillProgressListener.onFillProgress(percent);
                     }
-                }
-                if (py < height - 1) {
-                    int downIdx = (py + 1) * width + i;
-                    if (!visited[downIdx] && isSimilar(pixels[downIdx], targetColor, tolerance)) {
-                        if (i == left || visited[downIdx - 1] || !isSimilar(pixels[downIdx - 1], targetColor, tolerance)) {
-                            stack.push(new Point(i, py + 1));
+
+                    @Override
+                    public void onComplete(List<ParallelFloodFill.TileResult> results) {
+                        synchronized (DrawingView.this) {
+                            parallelFill = null;
+                            history.beginEdit(layer);
+                            Rect filled = new Rect();
+                            for (ParallelFloodFill.TileResult result : results) {
+                                history.replaceTile(result.col, result.row, result.tile, result.bounds);
+                                compositeDirtyRect.union(result.bounds);
+                                filled.union(result.bounds);
+                            }
+                            if (history.commitEdit()) logFill(layer, filled);
+                            // Switching layers does not stop the fill; a layer other than the current one is drawn from the caches
+                            if (layer != layers.get(currentLayerIndex)) invalidateLayerCache();
+                            captureTimelapseFrame();
                         }
+                        invalidate();
+                        if (fillProgressListener != null) fillProgressListener.onFillFinished();
                     }
-                }
-            }
-        }
-        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-        invalidate();
+                });
+        parallelFill.start();
     }
 
-    private void clearStack(List<Bitmap[]> stack) {
-        for (Bitmap[] state : stack) {
-            for (Bitmap b : state) {
-                if (b != null && !b.isRecycled()) b.recycle();
-            }
-        }
-        stack.clear();
+    public synchronized void cancelFill() {
+        if (parallelFill == null) return;
+        parallelFill.cancel();
+        parallelFill = null;
+        if (fillProgressListener != null) fillProgressListener.onFillFinished();
     }
 
-    private void saveStateToUndo() {
-        clearStack(redoStack);
-        Bitmap[] state = new Bitmap[layers.size()];
-        for (int i = 0; i < layers.size(); i++) {
-            state[i] = layers.get(i).bitmap.copy(Bitmap.Config.ARGB_8888, true);
-        }
-        undoStack.add(state);
-        if (undoStack.size() > MAX_UNDO_STEPS) {
-            Bitmap[] oldState = undoStack.remove(0);
-            for (Bitmap b : oldState) b.recycle();
+    public boolean isFilling() {
+        return parallelFill != null;
+    }
+
+    // 0 only fills the exact colour, 100 fills everything
+    public void setFillTolerance(int tolerance) {
+        fillTolerance = Math.max(0, Math.min(100, tolerance));
+    }
+
+    public int getFillTolerance() {
+        return fillTolerance;
+    }
+
+    // Whether the fill region is found in the merged image instead of the current layer alone
+    public void setFillSampleAllLayers(boolean sampleAll) {
+        isFillSampleAllLayers = sampleAll;
+    }
+
+    public boolean isFillSampleAllLayers() {
+        return isFillSampleAllLayers;
+    }
+
+    public void setSelectionTool(SelectionTool tool) {
+        selectionTool = tool;
+        isWandActive = false;
+    }
+
+    public SelectionTool getSelectionTool() {
+        return selectionTool;
+    }
+
+    // How the next wand selection is combined with the current one
+    public void setSelectionOp(SelectionMask.Op op) {
+        selectionOp = op;
+        isWandActive = false;
+    }
+
+    public SelectionMask.Op getSelectionOp() {
+        return selectionOp;
+    }
+
+    // Also re-runs the last wand selection, so the mask follows the slider while it is dragged
+    public synchronized void setWandTolerance(int tolerance) {
+        wandTolerance = Math.max(0, Math.min(100, tolerance));
+        if (isWandActive && isSelectMode) {
+            runWand();
         }
     }
 
-    public void undo() {
-        if (!undoStack.isEmpty()) {
-            Bitmap[] currentState = new Bitmap[layers.size()];
-            for (int i = 0; i < layers.size(); i++) {
-                currentState[i] = layers.get(i).bitmap.copy(Bitmap.Config.ARGB_8888, true);
-            }
-            redoStack.add(currentState);
+    public int getWandTolerance() {
+        return wandTolerance;
+    }
 
-            Bitmap[] previousState = undoStack.remove(undoStack.size() - 1);
-            
-            while (layers.size() > previousState.length) {
-                layers.remove(layers.size() - 1).recycle();
-            }
-            while (layers.size() < previousState.length) {
-                layers.add(new Layer(getWidth(), getHeight(), "Layer " + (layers.size() + 1)));
-            }
+    // The current selection, or null if nothing has been selected with the wand yet
+    public SelectionMask getSelectionMask() {
+        return selectionMask;
+    }
 
-            for (int i = 0; i < layers.size(); i++) {
-                layers.get(i).recycle();
-                layers.get(i).bitmap = previousState[i];
-                layers.get(i).canvas = new Canvas(layers.get(i).bitmap);
-            }
-            currentLayerIndex = Math.min(currentLayerIndex, layers.size() - 1);
+    public synchronized void clearSelection() {
+        isWandActive = false;
+        if (selectionMask != null && !selectionMask.isEmpty()) {
+            selectionMask.clear();
             invalidate();
-            captureTimelapseFrame();
         }
     }
 
-    public void redo() {
-        if (!redoStack.isEmpty()) {
-            Bitmap[] currentState = new Bitmap[layers.size()];
-            for (int i = 0; i < layers.size(); i++) {
-                currentState[i] = layers.get(i).bitmap.copy(Bitmap.Config.ARGB_8888, true);
-            }
-            undoStack.add(currentState);
+    public void setParallelFillEnabled(boolean enabled) {
+        isParallelFillEnabled = enabled;
+    }
 
-            Bitmap[] nextState = redoStack.remove(redoStack.size() - 1);
+    public void setOnFillProgressListener(OnFillProgressListener listener) {
+        this.fillProgressListener = listener;
+    }
 
-            while (layers.size() > nextState.length) {
-                layers.remove(layers.size() - 1).recycle();
+    public synchronized void undo() {
+        if (deferUntilTransformed(this::undo)) return;
+        cancelFill();
+        // A stroke still being drawn is ended first, so history and the log undo the same edit
+        closeOpenEdit();
+        // A scaled or rotated selection lands first; the undo follows it
+        if (deferUntilTransformed(this::undo)) return;
+        if (history.undo()) {
+            if (strokeLog != null) {
+                // Undoing an edit from before the recording started can only be logged as its result
+                if (strokeLog.canUndo()) strokeLog.undo(); else strokeLog.writeSnapshot(layers);
             }
-            while (layers.size() < nextState.length) {
-                layers.add(new Layer(getWidth(), getHeight(), "Layer " + (layers.size() + 1)));
+            onHistoryChanged();
+        }
+    }
+
+    public synchronized void redo() {
+        if (deferUntilTransformed(this::redo)) return;
+        cancelFill();
+        closeOpenEdit();
+        if (deferUntilTransformed(this::redo)) return;
+        if (history.redo()) {
+            if (strokeLog != null) {
+                if (strokeLog.canRedo()) strokeLog.redo(); else strokeLog.writeSnapshot(layers);
             }
+            onHistoryChanged();
+        }
+    }
+
+    private void onHistoryChanged() {
+        isWandActive = false;
+        currentLayerIndex = Math.max(0, Math.min(currentLayerIndex, layers.size() - 1));
+        invalidateLayerCache();
+        captureTimelapseFrame();
+    }
 
-            for (int i = 0; i < layers.size(); i++) {
-                layers.get(i).recycle();
-                layers.get(i).bitmap = nextState[i];
-                layers.get(i).canvas = new Canvas(layers.get(i).bitmap);
+    public Session detachSession() {
+        Future<Bitmap> pending;
+        synchronized (this) {
+            cancelFill();
+            if (isMoveMode) {
+                applyMove();
             }
-            currentLayerIndex = Math.min(currentLayerIndex, layers.size() - 1);
-            invalidate();
-            captureTimelapseFrame();
+            pending = transformCommit;
+        }
+        // The next view needs the selection in the layer; wait for it without holding the render thread up
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException | ExecutionException ignored) {
+            }
+        }
+        synchronized (this) {
+            completeMove();
+            closeOpenEdit();
+            if (timelapseRecorder != null) timelapseRecorder.stop();
+            if (strokeLog != null) strokeLog.finish();
+            isReleased = true;
+            releaseViewCaches();
+            return new Session(layers, history, currentLayerIndex, backgroundColor);
         }
     }
 
-    public void setColor(int color) {
+    public synchronized void attachSession(Session session) {
+        history.release();
+        for (Layer l : layers) l.recycle();
+        layers = session.layers;
+        history = session.history;
+        currentLayerIndex = session.currentLayerIndex;
+        backgroundColor = session.backgroundColor;
+        invalidateLayerCache();
+    }
+
+    public synchronized void release() {
+        isReleased = true;
+        if (timelapseRecorder != null) timelapseRecorder.stop();
+        if (strokeLog != null) strokeLog.finish();
+        cancelFill();
+        discardTransform();
+        history.release();
+        for (Layer l : layers) l.recycle();
+        releaseViewCaches();
+    }
+
+    // Frees what belongs to this view alone; the layers and history may live on in a detached session
+    private void releaseViewCaches() {
+        brushEngine.release();
+        floodFill.release();
+        strokeBuffer.recycle();
+        if (belowCache != null) belowCache.recycle();
+        if (aboveCache != null) aboveCache.recycle();
+        if (composite != null) composite.recycle();
+        if (selectionMask != null) selectionMask.recycle();
+        belowCache = null;
+        aboveCache = null;
+        composite = null;
+        selectionMask = null;
+        compositePixels = new int[0];
+    }
+
+    public synchronized void setColor(int color) {
         currentColor = color;
-        if (!isEraserMode) {
-            paint.setColor(color);
-            paint.setAlpha(currentAlpha);
-            paint.setXfermode(null);
-        }
+        paint.setColor(color);
+        paint.setAlpha(255);
     }
 
     public int getColor() {
@@ -839,16 +2104,13 @@ public class DrawingView extends View {
 
     public void setBrushAlpha(int alpha) {
         currentAlpha = alpha;
-        if (!isEraserMode) {
-            paint.setAlpha(alpha);
-        }
     }
 
     public int getBrushAlpha() {
         return currentAlpha;
     }
 
-    public void setStrokeWidth(float width) {
+    public synchronized void setStrokeWidth(float width) {
         currentStrokeWidth = width;
         paint.setStrokeWidth(width);
         updateHardness();
@@ -858,7 +2120,7 @@ public class DrawingView extends View {
         return currentStrokeWidth;
     }
 
-    public void setHardness(int hardness) {
+    public synchronized void setHardness(int hardness) {
         currentHardness = hardness;
         updateHardness();
     }
@@ -867,7 +2129,17 @@ public class DrawingView extends View {
         return currentHardness;
     }
 
+    // Distance between brush dabs as a fraction of the brush size
+    public synchronized void setBrushSpacing(float spacing) {
+        brushEngine.setSpacing(spacing);
+    }
+
+    public float getBrushSpacing() {
+        return brushEngine.getSpacing();
+    }
+
     private void updateHardness() {
+        brushEngine.setBrush(currentStrokeWidth, currentHardness);
         if (currentHardness >= 100) {
             paint.setMaskFilter(null);
         } else {
@@ -880,31 +2152,38 @@ public class DrawingView extends View {
         }
     }
 
-    public Bitmap getBitmap() {
+    public synchronized Bitmap getBitmap() {
         if (getWidth() <= 0 || getHeight() <= 0) return Bitmap.createBitmap(1, 1, Bitmap.Config.ARGB_8888);
         Bitmap result = Bitmap.createBitmap(getWidth(), getHeight(), Bitmap.Config.ARGB_8888);
-        Canvas canvas = new Canvas(result);
-        canvas.drawColor(backgroundColor);
+        drawLayers(new Canvas(result));
+        return result;
+    }
+
+    // The background and every visible layer, replacing whatever the canvas held
+    private void drawLayers(Canvas canvas) {
+        canvas.drawColor(backgroundColor, PorterDuff.Mode.SRC);
         for (Layer layer : layers) {
             if (layer.isVisible) {
                 layerPaint.setAlpha((int) (layer.opacity * 255));
-                canvas.drawBitmap(layer.bitmap, 0, 0, layerPaint);
+                layer.tiles.drawTo(canvas, layerPaint);
             }
         }
-        return result;
     }
 
-    public void loadBitmap(Bitmap loadedBitmap) {
+    public synchronized void loadBitmap(Bitmap loadedBitmap) {
+        if (deferUntilTransformed(() -> loadBitmap(loadedBitmap))) return;
+        cancelFill();
+        clearSelection();
         for (Layer l : layers) l.recycle();
         layers.clear();
-        clearStack(undoStack);
-        clearStack(redoStack);
+        history.clear();
         
         Layer layer = new Layer(loadedBitmap.getWidth(), loadedBitmap.getHeight(), "Imported Layer");
-        layer.canvas.drawBitmap(loadedBitmap, 0, 0, null);
+        layer.tiles.draw(null, c -> c.drawBitmap(loadedBitmap, 0, 0, null));
         layers.add(layer);
         currentLayerIndex = 0;
-        invalidate();
+        if (strokeLog != null) strokeLog.writeSnapshot(layers);
+        invalidateLayerCache();
         captureTimelapseFrame();
     }
 
@@ -912,14 +2191,7 @@ public class DrawingView extends View {
         resetModes();
         isEraserMode = enabled;
         if (enabled) {
-            paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
-            paint.setAlpha(255);
             paint.setMaskFilter(null);
-        } else {
-            paint.setXfermode(null);
-            paint.setColor(currentColor);
-            paint.setAlpha(currentAlpha);
-            updateHardness();
         }
     }
 
@@ -958,26 +2230,27 @@ public class DrawingView extends View {
         return symmetryType;
     }
 
-    private void resetModes() {
+    private synchronized void resetModes() {
         if (isMoveMode) {
             applyMove();
         }
         isEraserMode = false;
         isFillMode = false;
         isPickerMode = false;
+        isPicking = false;
         isTextMode = false;
         isSelectMode = false;
+        isWandActive = false;
         isMoveMode = false;
         isTransformMode = false;
         currentShape = ShapeType.NONE;
-        paint.setXfermode(null);
-        paint.setColor(currentColor);
-        paint.setAlpha(currentAlpha);
         updateHardness();
     }
 
-    public void setBackgroundColor(int color) {
+    public synchronized void setBackgroundColor(int color) {
         backgroundColor = color;
+        if (strokeLog != null) strokeLog.setBackground(color);
+        invalidateComposite(null);
         invalidate();
         captureTimelapseFrame();
     }
@@ -986,9 +2259,11 @@ public class DrawingView extends View {
         return layers;
     }
 
-    public void setCurrentLayerIndex(int index) {
-        if (index >= 0 && index < layers.size()) {
+    public synchronized void setCurrentLayerIndex(int index) {
+        if (index >= 0 && index < layers.size() && index != currentLayerIndex) {
             this.currentLayerIndex = index;
+            isWandActive = false;
+            invalidateLayerCache();
         }
     }
 
@@ -0,0 +1,245 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A lifted selection that can be moved, scaled and rotated before it is put back into the
+ * layer. The bitmap is placed by a matrix; while a handle is dragged a downsampled proxy is
+ * drawn instead of the full bitmap, and the final resampling is done once, off the UI thread.
+ */
+public class FloatingSelection {
+
+    public enum Handle {
+        NONE, MOVE, SCALE, ROTATE
+    }
+
+    // Selections larger than this are previewed through a proxy while they are transformed
+    private static final int PROXY_MAX_SIZE = 1024;
+    private static final float MIN_SIZE = 4;
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Bitmap bitmap;
+    private final Bitmap proxy;
+    private final Matrix matrix = new Matrix();
+    private final Matrix proxyMatrix = new Matrix();
+    private final Matrix inverse = new Matrix();
+    private final Paint bitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint handlePaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final float[] corners = new float[8];
+    private final float[] point = new float[2];
+    private final float[] values = new float[9];
+    private final RectF bitmapRect;
+    private final Path outline = new Path();
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+    private Handle activeHandle = Handle.NONE;
+    private float lastX, lastY;
+
+    public FloatingSelection(Bitmap bitmap, float left, float top) {
+        this.bitmap = bitmap;
+        int size = Math.max(bitmap.getWidth(), bitmap.getHeight());
+        if (size > PROXY_MAX_SIZE) {
+            float scale = PROXY_MAX_SIZE / (float) size;
+            proxy = Bitmap.createScaledBitmap(bitmap, Math.max(1, Math.round(bitmap.getWidth() * scale)),
+                    Math.max(1, Math.round(bitmap.getHeight() * scale)), true);
+        } else {
+            proxy = bitmap;
+        }
+        bitmapRect = new RectF(0, 0, bitmap.getWidth(), bitmap.getHeight());
+        matrix.setTranslate(left, top);
+        handlePaint.setColor(Color.BLUE);
+    }
+
+    public Bitmap getBitmap() {
+        return bitmap;
+    }
+
+    // Starts a drag at (x, y) in layer coordinates; returns false if it misses the selection and its handles
+    public boolean begin(float x, float y, float handleRadius) {
+        activeHandle = hitTest(x, y, handleRadius);
+        lastX = x;
+        lastY = y;
+        return activeHandle != Handle.NONE;
+    }
+
+    private Handle hitTest(float x, float y, float handleRadius) {
+        updateCorners();
+        if (Math.hypot(x - corners[4], y - corners[5]) <= handleRadius * 1.5f) return Handle.SCALE;
+        rotateHandle(handleRadius);
+        if (Math.hypot(x - point[0], y - point[1]) <= handleRadius * 1.5f) return Handle.ROTATE;
+
+        matrix.invert(inverse);
+        point[0] = x;
+        point[1] = y;
+        inverse.mapPoints(point);
+        return bitmapRect.contains(point[0], point[1]) ? Handle.MOVE : Handle.NONE;
+    }
+
+    public void drag(float x, float y) {
+        float cx = (corners[0] + corners[4]) / 2;
+        float cy = (corners[1] + corners[5]) / 2;
+        switch (activeHandle) {
+            case MOVE:
+                matrix.postTranslate(x - lastX, y - lastY);
+                break;
+            case SCALE: {
+                float from = (float) Math.hypot(lastX - cx, lastY - cy);
+                float to = (float) Math.hypot(x - cx, y - cy);
+                float scale = from > 0 ? to / from : 1;
+                // Stop shrinking once the selection is a few pixels across
+                if (scale < 1 && matrix.mapRadius(Math.min(bitmap.getWidth(), bitmap.getHeight())) * scale < MIN_SIZE) break;
+                matrix.postScale(scale, scale, cx, cy);
+                break;
+            }
+            case ROTATE: {
+                double from = Math.atan2(lastY - cy, lastX - cx);
+                double to = Math.atan2(y - cy, x - cx);
+                matrix.postRotate((float) Math.toDegrees(to - from), cx, cy);
+                break;
+            }
+            default:
+                return;
+        }
+        lastX = x;
+        lastY = y;
+        updateCorners();
+    }
+
+    public void end() {
+        activeHandle = Handle.NONE;
+    }
+
+    public boolean isTransforming() {
+        return activeHandle != Handle.NONE;
+    }
+
+    // Area covered by the selection, in layer coordinates
+    public void getBounds(RectF out) {
+        matrix.mapRect(out, bitmapRect);
+    }
+
+    public boolean isTranslationOnly() {
+        matrix.getValues(values);
+        return values[Matrix.MSCALE_X] == 1 && values[Matrix.MSCALE_Y] == 1
+                && values[Matrix.MSKEW_X] == 0 && values[Matrix.MSKEW_Y] == 0;
+    }
+
+    public float getTranslateX() {
+        matrix.getValues(values);
+        return values[Matrix.MTRANS_X];
+    }
+
+    public float getTranslateY() {
+        matrix.getValues(values);
+        return values[Matrix.MTRANS_Y];
+    }
+
+    // Draws the selection, plus its outline and handles if handleRadius > 0, on a canvas in layer coordinates
+    public void draw(Canvas canvas, Paint outlinePaint, float handleRadius) {
+        if (activeHandle != Handle.NONE && proxy != bitmap) {
+            proxyMatrix.set(matrix);
+            proxyMatrix.preScale(bitmap.getWidth() / (float) proxy.getWidth(), bitmap.getHeight() / (float) proxy.getHeight());
+            canvas.drawBitmap(proxy, proxyMatrix, bitmapPaint);
+        } else {
+            canvas.drawBitmap(bitmap, matrix, bitmapPaint);
+        }
+        if (handleRadius <= 0) return;
+
+        updateCorners();
+        outline.rewind();
+        outline.moveTo(corners[0], corners[1]);
+        outline.lineTo(corners[2], corners[3]);
+        outline.lineTo(corners[4], corners[5]);
+        outline.lineTo(corners[6], corners[7]);
+        outline.close();
+        canvas.drawPath(outline, outlinePaint);
+        canvas.drawCircle(corners[4], corners[5], handleRadius, handlePaint);
+        rotateHandle(handleRadius);
+        canvas.drawCircle(point[0], point[1], handleRadius, handlePaint);
+    }
+
+    // Corners in layer coordinates, clockwise from the bitmap's top left
+    private void updateCorners() {
+        corners[0] = 0;
+        corners[1] = 0;
+        corners[2] = bitmap.getWidth();
+        corners[3] = 0;
+        corners[4] = bitmap.getWidth();
+        corners[5] = bitmap.getHeight();
+        corners[6] = 0;
+        corners[7] = bitmap.getHeight();
+        matrix.mapPoints(corners);
+    }
+
+    // Puts the rotate handle into point: out from the middle of the top edge, away from the bottom edge
+    private void rotateHandle(float handleRadius) {
+        float topX = (corners[0] + corners[2]) / 2, topY = (corners[1] + corners[3]) / 2;
+        float bottomX = (corners[6] + corners[4]) / 2, bottomY = (corners[7] + corners[5]) / 2;
+        float length = Math.max(1e-3f, (float) Math.hypot(topX - bottomX, topY - bottomY));
+        float offset = handleRadius * 3;
+        point[0] = topX + (topX - bottomX) / length * offset;
+        point[1] = topY + (topY - bottomY) / length * offset;
+    }
+
+    /**
+     * Renders the transformed selection at full quality on a background thread. outBounds is
+     * set to the area of the layer the result covers; returns null if that is empty. onDone
+     * runs on the main thread once the result is ready.
+     */
+    public Future<Bitmap> resample(Rect outBounds, int layerWidth, int layerHeight, Runnable onDone) {
+        RectF dst = new RectF();
+        getBounds(dst);
+        outBounds.set((int) Math.floor(dst.left), (int) Math.floor(dst.top), (int) Math.ceil(dst.right), (int) Math.ceil(dst.bottom));
+        if (!outBounds.intersect(0, 0, layerWidth, layerHeight)) {
+            outBounds.setEmpty();
+            return null;
+        }
+        final Matrix transform = new Matrix(matrix);
+        final Rect bounds = new Rect(outBounds);
+        return EXECUTOR.submit(() -> {
+            Bitmap result = render(bitmap, transform, bounds);
+            mainHandler.post(onDone);
+            return result;
+        });
+    }
+
+    private static Bitmap render(Bitmap source, Matrix transform, Rect bounds) {
+        Bitmap out = Bitmap.createBitmap(bounds.width(), bounds.height(), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(out);
+        canvas.translate(-bounds.left, -bounds.top);
+        canvas.concat(transform);
+
+        // Bilinear filtering skips source pixels below half size, so halve the source until it is not
+        Bitmap src = source;
+        float scale = transform.mapRadius(1f);
+        while (scale < 0.5f && src.getWidth() > 1 && src.getHeight() > 1) {
+            Bitmap half = Bitmap.createScaledBitmap(src, src.getWidth() / 2, src.getHeight() / 2, true);
+            canvas.scale(src.getWidth() / (float) half.getWidth(), src.getHeight() / (float) half.getHeight());
+            if (src != source) src.recycle();
+            src = half;
+            scale *= 2;
+        }
+        canvas.drawBitmap(src, 0, 0, new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG));
+        if (src != source) src.recycle();
+        return out;
+    }
+
+    // Must not be called while a resample() is still running
+    public void recycle() {
+        if (proxy != bitmap) proxy.recycle();
+        bitmap.recycle();
+    }
+}
@@ -0,0 +1,233 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Rect;
+
+import java.util.Arrays;
+
+/**
+ * Span-based scanline flood fill (Heckbert's seed fill) over a row-major ARGB buffer.
+ * The span stack, the visited bitset and the pixel buffers are kept between fills, so a
+ * fill allocates nothing once the buffers have grown to the canvas size.
+ *
+ * Colour similarity is a weighted Euclidean distance (a cheap perceptual approximation that
+ * counts green most and blue least). Its per-channel terms are tabulated for the target
+ * colour when a fill starts, so testing a pixel is four table lookups and a compare.
+ */
+public class FloodFill {
+
+    // Told about every span as it is filled, e.g. to seed neighbouring regions
+    public interface SpanListener {
+        void onSpan(int y, int left, int right);
+    }
+
+    private static final int WEIGHT_A = 3;
+    private static final int WEIGHT_R = 3;
+    private static final int WEIGHT_G = 4;
+    private static final int WEIGHT_B = 2;
+    private static final long MAX_DISTANCE = (long) (WEIGHT_A + WEIGHT_R + WEIGHT_G + WEIGHT_B) * 255 * 255;
+
+    private int[] pixelBuffer = new int[0];
+    private int[] sampleBuffer = new int[0];
+    private int[] pixels;
+    private int[] samples;
+    // Weighted squared difference from the target, indexed by channel * 256 + value (order A, R, G, B)
+    private final int[] distance = new int[1024];
+    private int threshold;
+    private long[] visited = new long[0];
+    // Pending spans as (y, left, right, dy) quadruples
+    private int[] stack = new int[256];
+    private int stackSize;
+
+    private int width;
+    private int height;
+    private int target;
+    private int replacement;
+    private int minX, minY, maxX, maxY;
+    private int filledCount;
+    private SpanListener spanListener;
+
+    public void setSpanListener(SpanListener listener) {
+        spanListener = listener;
+    }
+
+    // Returns a reusable buffer of at least size ints for the caller to load the layer pixels into
+    public int[] obtainPixels(int size) {
+        if (pixelBuffer.length < size) {
+            pixelBuffer = new int[size];
+        }
+        return pixelBuffer;
+    }
+
+    // Same as obtainPixels(), for the image the region is searched in when it is not the layer itself
+    public int[] obtainSamples(int size) {
+        if (sampleBuffer.length < size) {
+            sampleBuffer = new int[size];
+        }
+        return sampleBuffer;
+    }
+
+    /**
+     * Replaces the region connected to (x, y) whose colours are within tolerance (0-100) of
+     * targetColor. The region is searched in samples, or in pixels if samples is null, and
+     * written to pixels. With null pixels nothing is written and only getFilledMask() is
+     * produced. Returns false if nothing was filled; otherwise getBounds() gives the area that
+     * changed.
+     */
+    public boolean fill(int[] pixels, int[] samples, int width, int height, int x, int y, int targetColor, int replacementColor, int tolerance) {
+        reset(pixels, samples, width, height, targetColor, replacementColor, tolerance);
+        return fillFrom(x, y);
+    }
+
+    // Starts a fill session; fillFrom() can then be called for any number of seeds
+    public void reset(int[] pixels, int[] samples, int width, int height, int targetColor, int replacementColor, int tolerance) {
+        this.pixels = pixels;
+        this.samples = samples != null ? samples : pixels;
+        this.width = width;
+        this.height = height;
+        this.target = targetColor;
+        this.replacement = replacementColor;
+        buildDistanceTable(targetColor);
+        tolerance = Math.max(0, Math.min(100, tolerance));
+        threshold = (int) (MAX_DISTANCE * tolerance * tolerance / 10000);
+
+        int words = (width * height + 63) >>> 6;
+        if (visited.length < words) {
+            visited = new long[words];
+        } else {
+            Arrays.fill(visited, 0, words, 0L);
+        }
+        minX = minY = Integer.MAX_VALUE;
+        maxX = maxY = Integer.MIN_VALUE;
+        filledCount = 0;
+    }
+
+    // Points the session at other buffers holding the same pixels; what has been filled so far is kept
+    public void setBuffers(int[] pixels, int[] samples) {
+        this.pixels = pixels;
+        this.samples = samples != null ? samples : pixels;
+    }
+
+    // Fills from (x, y) unless it is outside the region or already filled; returns false if so
+    public boolean fillFrom(int x, int y) {
+        if (x < 0 || x >= width || y < 0 || y >= height || !inside(x, y)) return false;
+
+        stackSize = 0;
+        push(y, x, x, 1);
+        push(y + 1, x, x, -1);
+
+        while (stackSize > 0) {
+            stackSize -= 4;
+            int dy = stack[stackSize + 3];
+            int x2 = stack[stackSize + 2];
+            int x1 = stack[stackSize + 1];
+            int row = stack[stackSize] + dy;
+
+            // Extend left from x1; the parent span seeded this row at [x1, x2]
+            int px = x1;
+            while (px >= 0 && inside(px, row)) px--;
+            int left = px + 1;
+            boolean inSpan = px < x1;
+            if (inSpan) {
+                setSpan(row, left, x1);
+                if (left < x1) push(row, left, x1 - 1, -dy);
+                px = x1 + 1;
+            }
+            while (true) {
+                if (inSpan) {
+                    int start = px;
+                    while (px < width && inside(px, row)) px++;
+                    if (px > start) setSpan(row, start, px - 1);
+                    push(row, left, px - 1, dy);
+                    if (px > x2 + 1) push(row, x2 + 1, px - 1, -dy);
+                }
+                // Skip to the next inside pixel under the parent span
+                px++;
+                while (px <= x2 && !inside(px, row)) px++;
+                if (px > x2) break;
+                left = px;
+                inSpan = true;
+            }
+        }
+        return true;
+    }
+
+    public boolean isEmpty() {
+        return filledCount == 0;
+    }
+
+    // Row-major bitset of the filled pixels; valid until the next reset()
+    public long[] getFilledMask() {
+        return visited;
+    }
+
+    public int getFilledCount() {
+        return filledCount;
+    }
+
+    public void getBounds(Rect out) {
+        if (filledCount == 0) {
+            out.setEmpty();
+        } else {
+            out.set(minX, minY, maxX + 1, maxY + 1);
+        }
+    }
+
+    private void buildDistanceTable(int color) {
+        int a = color >>> 24;
+        int r = (color >> 16) & 0xff;
+        int g = (color >> 8) & 0xff;
+        int b = color & 0xff;
+        for (int v = 0; v < 256; v++) {
+            distance[v] = WEIGHT_A * (v - a) * (v - a);
+            distance[256 + v] = WEIGHT_R * (v - r) * (v - r);
+            distance[512 + v] = WEIGHT_G * (v - g) * (v - g);
+            distance[768 + v] = WEIGHT_B * (v - b) * (v - b);
+        }
+    }
+
+    private boolean inside(int x, int y) {
+        int i = y * width + x;
+        if ((visited[i >>> 6] & (1L << i)) != 0) return false;
+        int c = samples[i];
+        if (c == target) return true;
+        return distance[c >>> 24] + distance[256 + ((c >> 16) & 0xff)]
+                + distance[512 + ((c >> 8) & 0xff)] + distance[768 + (c & 0xff)] <= threshold;
+    }
+
+    private void setSpan(int y, int x1, int x2) {
+        int start = y * width;
+        for (int i = start + x1; i <= start + x2; i++) {
+            visited[i >>> 6] |= 1L << i;
+        }
+        if (pixels != null) {
+            Arrays.fill(pixels, start + x1, start + x2 + 1, replacement);
+        }
+        if (x1 < minX) minX = x1;
+        if (x2 > maxX) maxX = x2;
+        if (y < minY) minY = y;
+        if (y > maxY) maxY = y;
+        filledCount += x2 - x1 + 1;
+        if (spanListener != null) spanListener.onSpan(y, x1, x2);
+    }
+
+    private void push(int y, int x1, int x2, int dy) {
+        int next = y + dy;
+        if (next < 0 || next >= height) return;
+        if (stackSize + 4 > stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[stackSize++] = y;
+        stack[stackSize++] = x1;
+        stack[stackSize++] = x2;
+        stack[stackSize++] = dy;
+    }
+
+    public void release() {
+        pixelBuffer = new int[0];
+        sampleBuffer = new int[0];
+        pixels = null;
+        samples = null;
+        visited = new long[0];
+        stack = new int[256];
+    }
+}
@@ -0,0 +1,126 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Decodes image files on a thread of its own, staying up to a fixed number of frames ahead of
+ * the consumer. Frames are decoded into a small pool of bitmaps reused through inBitmap, so
+ * once the pool is full decoding allocates no pixels, and the consumer only waits when it is
+ * faster than the decoder.
+ */
+public class FramePrefetcher {
+
+    private static class Slot {
+        Bitmap bitmap;
+    }
+
+    // Queued after the last frame
+    private static final Slot END = new Slot();
+
+    private final File[] files;
+    private final BlockingQueue<Slot> freeSlots;
+    private final BlockingQueue<Slot> decodedSlots;
+    private final List<Slot> slots = new ArrayList<>();
+    private final BitmapFactory.Options options = new BitmapFactory.Options();
+    private final Thread decoder;
+    private Slot current;
+    private volatile RuntimeException failure;
+
+    public FramePrefetcher(File[] files, int prefetchCount) {
+        this.files = files;
+        int count = Math.max(1, prefetchCount);
+        freeSlots = new ArrayBlockingQueue<>(count);
+        // Room for every slot plus END, so the decoder never blocks on this queue
+        decodedSlots = new ArrayBlockingQueue<>(count + 1);
+        for (int i = 0; i < count; i++) {
+            Slot slot = new Slot();
+            slots.add(slot);
+            freeSlots.add(slot);
+        }
+        options.inMutable = true;
+        decoder = new Thread(this::runDecoder, "FramePrefetch");
+        decoder.start();
+    }
+
+    /**
+     * Returns the next decoded frame, waiting for it if necessary, or null after the last one.
+     * The previous frame goes back to the pool and must no longer be used.
+     */
+    public Bitmap next() throws InterruptedException {
+        if (current != null) {
+            freeSlots.add(current);
+            current = null;
+        }
+        Slot slot = decodedSlots.take();
+        if (slot == END) {
+            decodedSlots.add(END);
+            if (failure != null) throw failure;
+            return null;
+        }
+        current = slot;
+        return slot.bitmap;
+    }
+
+    // Stops decoding and recycles the pool; no frame may be used afterwards
+    public void close() {
+        decoder.interrupt();
+        boolean isInterrupted = false;
+        while (decoder.isAlive()) {
+            try {
+                decoder.join();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        for (Slot slot : slots) {
+            if (slot.bitmap != null) slot.bitmap.recycle();
+            slot.bitmap = null;
+        }
+        if (isInterrupted) Thread.currentThread().interrupt();
+    }
+
+    private void runDecoder() {
+        try {
+            for (File file : files) {
+                Slot slot = freeSlots.take();
+                if (decode(file, slot)) {
+                    decodedSlots.add(slot);
+                } else {
+                    // Unreadable frames are skipped
+                    freeSlots.add(slot);
+                }
+            }
+        } catch (InterruptedException e) {
+            return;
+        } catch (RuntimeException e) {
+            failure = e;
+        }
+        decodedSlots.add(END);
+    }
+
+    // Decodes file into the slot's bitmap, or into a new one if it has none or the frame does not fit it
+    private boolean decode(File file, Slot slot) {
+        options.inBitmap = slot.bitmap;
+        Bitmap decoded;
+        try {
+            decoded = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } catch (IllegalArgumentException e) {
+            if (slot.bitmap == null) throw e;
+            // A frame recorded before a resize
+            slot.bitmap.recycle();
+            slot.bitmap = null;
+            options.inBitmap = null;
+            decoded = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        }
+        if (decoded == null) return false;
+        slot.bitmap = decoded;
+        return true;
+    }
+}
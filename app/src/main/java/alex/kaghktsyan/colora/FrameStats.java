@@ -0,0 +1,114 @@
+package alex.kaghktsyan.colora;
+
+import android.util.Log;
+import android.view.FrameMetrics;
+import android.view.Window;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Collects onDraw times and whole-frame durations (from FrameMetrics) and logs a summary
+ * every REPORT_FRAMES frames, so the hardware and software render modes can be compared.
+ * Touch-to-frame latency is measured from the input event to the end of the frame that
+ * first drew it. Enable with: adb shell setprop log.tag.FrameStats DEBUG
+ */
+public class FrameStats implements Window.OnFrameMetricsAvailableListener {
+
+    public static final String TAG = "FrameStats";
+    private static final int REPORT_FRAMES = 120;
+    private static final long JANK_NANOS = 16_666_667L;
+
+    private final long[] frameNanos = new long[REPORT_FRAMES];
+    private int frameCount = 0;
+    private long drawNanosTotal = 0;
+    private long drawNanosMax = 0;
+    private int drawCount = 0;
+    private String label = "";
+    // Input drawn by onDraw, waiting for the metrics of the frame it was drawn in
+    private static final int MAX_PENDING_INPUTS = 8;
+    private final long[] pendingInputNanos = new long[MAX_PENDING_INPUTS];
+    private final long[] pendingDrawNanos = new long[MAX_PENDING_INPUTS];
+    private int pendingCount = 0;
+    private final long[] latencyNanos = new long[REPORT_FRAMES];
+    private int latencyCount = 0;
+
+    public static boolean isEnabled() {
+        return Log.isLoggable(TAG, Log.DEBUG);
+    }
+
+    public synchronized void reset(String label) {
+        this.label = label;
+        frameCount = 0;
+        drawNanosTotal = 0;
+        drawNanosMax = 0;
+        drawCount = 0;
+        pendingCount = 0;
+        latencyCount = 0;
+    }
+
+    public synchronized void addDrawTime(long nanos) {
+        drawNanosTotal += nanos;
+        drawNanosMax = Math.max(drawNanosMax, nanos);
+        drawCount++;
+    }
+
+    // Times are System.nanoTime(), which shares its clock with MotionEvent event times
+    public synchronized void addInputDrawn(long inputNanos, long drawNanos) {
+        if (pendingCount == MAX_PENDING_INPUTS) {
+            // Metrics are not arriving (or are dropped); the oldest entry can no longer be matched
+            System.arraycopy(pendingInputNanos, 1, pendingInputNanos, 0, pendingCount - 1);
+            System.arraycopy(pendingDrawNanos, 1, pendingDrawNanos, 0, pendingCount - 1);
+            pendingCount--;
+        }
+        pendingInputNanos[pendingCount] = inputNanos;
+        pendingDrawNanos[pendingCount] = drawNanos;
+        pendingCount++;
+    }
+
+    @Override
+    public synchronized void onFrameMetricsAvailable(Window window, FrameMetrics frameMetrics, int dropCountSinceLastInvocation) {
+        long total = frameMetrics.getMetric(FrameMetrics.TOTAL_DURATION);
+        long frameStart = frameMetrics.getMetric(FrameMetrics.INTENDED_VSYNC_TIMESTAMP);
+        long frameEnd = frameStart + total;
+        // Inputs drawn during this frame get its end time; ones drawn before it belong to frames already gone
+        int kept = 0;
+        for (int i = 0; i < pendingCount; i++) {
+            if (pendingDrawNanos[i] > frameEnd) {
+                pendingInputNanos[kept] = pendingInputNanos[i];
+                pendingDrawNanos[kept] = pendingDrawNanos[i];
+                kept++;
+            } else if (pendingDrawNanos[i] >= frameStart && latencyCount < latencyNanos.length) {
+                latencyNanos[latencyCount++] = frameEnd - pendingInputNanos[i];
+            }
+        }
+        pendingCount = kept;
+
+        frameNanos[frameCount++] = total;
+        if (frameCount == REPORT_FRAMES) {
+            report();
+        }
+    }
+
+    private void report() {
+        Arrays.sort(frameNanos, 0, frameCount);
+        long total = 0;
+        int janky = 0;
+        for (int i = 0; i < frameCount; i++) {
+            total += frameNanos[i];
+            if (frameNanos[i] > JANK_NANOS) janky++;
+        }
+        Log.d(TAG, String.format(Locale.US,
+                "%s: frame avg %.2f ms, p90 %.2f ms, max %.2f ms, janky %d/%d; onDraw avg %.2f ms, max %.2f ms",
+                label, total / 1e6 / frameCount, frameNanos[frameCount * 9 / 10] / 1e6,
+                frameNanos[frameCount - 1] / 1e6, janky, frameCount,
+                drawCount == 0 ? 0 : drawNanosTotal / 1e6 / drawCount, drawNanosMax / 1e6));
+        if (latencyCount > 0) {
+            Arrays.sort(latencyNanos, 0, latencyCount);
+            Log.d(TAG, String.format(Locale.US, "%s: touch-to-frame p50 %.2f ms, p90 %.2f ms, max %.2f ms over %d inputs",
+                    label, latencyNanos[latencyCount / 2] / 1e6, latencyNanos[latencyCount * 9 / 10] / 1e6,
+                    latencyNanos[latencyCount - 1] / 1e6, latencyCount));
+        }
+        reset(label);
+    }
+}
@@ -1,6 +1,7 @@
 package alex.kaghktsyan.colora;
 
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.content.res.ColorStateList;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
@@ -11,6 +12,7 @@ import android.os.Bundle;
 import android.util.Base64;
 import android.util.TypedValue;
 import android.view.MotionEvent;
+import android.view.SurfaceView;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
@@ -19,6 +21,7 @@ import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.ImageButton;
 import android.widget.ImageView;
+import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.ProgressBar;
 import android.widget.SeekBar;
@@ -51,18 +54,42 @@ public class NewPaintingActivity extends AppCompatActivity {
     private DrawingView drawingView;
     private ImageButton btnUndo, btnRedo, btnSave, btnLayers, btnBack, btnHand, btnZoom, btnReference, btnTimelapse;
     private ImageButton toolBrush, toolEraser, toolFill, toolPicker, toolShapes, toolText, toolSelect, toolSymmetry;
-    private View shapesPanel, symmetryPanel, referencePanel;
+    private View shapesPanel, symmetryPanel, selectionPanel, referencePanel;
     private ImageView imgReference;
     private ImageButton btnCloseReference;
     private ImageButton shapeLine, shapeRect, shapeCircle, shapeTriangle;
     private ImageButton symNone, symVertical, symHorizontal, symRadial;
-    private SeekBar sbSize, sbOpacity, sbHardness;
+    private ImageButton selectRect, selectWand, selectLasso, selectAdd, selectSubtract;
+    private SeekBar sbSize, sbOpacity, sbHardness, sbWandTolerance;
     private TextView tvSizeValue, tvOpacityValue, tvHardnessValue;
     private View currentColorPreview;
     private RecyclerView rvPalette;
     private ColorSwatchAdapter paletteAdapter;
 
     private float dX, dY;
+    private AlertDialog fillProgressDialog;
+    private ProgressBar fillProgressBar;
+
+    private static DrawingView.Session retainedSession;
+
+    private static final String PREFS_NAME = "theme_prefs";
+    private static final String KEY_HARDWARE_RENDERING = "hardware_rendering";
+    private static final String KEY_LOW_LATENCY_INK = "low_latency_ink";
+    private static final String KEY_RENDER_THREAD = "render_thread";
+    private static final String KEY_LIVE_TIMELAPSE = "live_timelapse";
+    private static final String KEY_STROKE_LOG_TIMELAPSE = "stroke_log_timelapse";
+
+    // Resolution (0 keeps the canvas size), length in seconds and frame rate of a replayed timelapse
+    private static final String[] STROKE_LOG_PRESET_NAMES = {
+            "720p · 15 сек · 30 кадров/с",
+            "1080p · 30 сек · 30 кадров/с",
+            "1080p · 15 сек · 60 кадров/с",
+            "Размер холста · 20 сек · 30 кадров/с"
+    };
+    private static final int[][] STROKE_LOG_PRESETS = {{720, 15, 30}, {1080, 30, 30}, {1080, 15, 60}, {0, 20, 30}};
+    // Length of a video made from recorded frames; 0 plays every frame at the normal rate
+    private static final String[] TIMELAPSE_DURATION_NAMES = {"Все кадры", "15 сек", "30 сек", "60 сек"};
+    private static final int[] TIMELAPSE_DURATIONS = {0, 15, 30, 60};
 
     private final ActivityResultLauncher<String> pickReferenceLauncher = registerForActivityResult(
             new ActivityResultContracts.GetContent(),
@@ -96,6 +123,19 @@ public class NewPaintingActivity extends AppCompatActivity {
         setupListeners();
         setupPalette();
 
+        SharedPreferences prefs = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        drawingView.setRenderMode(prefs.getBoolean(KEY_HARDWARE_RENDERING, true)
+                ? DrawingView.RenderMode.HARDWARE : DrawingView.RenderMode.SOFTWARE);
+        drawingView.setLowLatencyMode(prefs.getBoolean(KEY_LOW_LATENCY_INK, false));
+        drawingView.setTimelapseOutput(prefs.getBoolean(KEY_LIVE_TIMELAPSE, true)
+                ? TimelapseRecorder.Output.LIVE_VIDEO : TimelapseRecorder.Output.JPEG_FRAMES);
+        drawingView.setStrokeLogTimelapse(prefs.getBoolean(KEY_STROKE_LOG_TIMELAPSE, false));
+        if (prefs.getBoolean(KEY_RENDER_THREAD, false)) {
+            SurfaceView canvasSurface = findViewById(R.id.canvasSurface);
+            canvasSurface.setVisibility(View.VISIBLE);
+            drawingView.setRenderSurface(canvasSurface);
+        }
+
         ViewCompat.setOnApplyWindowInsetsListener(findViewById(android.R.id.content), (v, insets) -> {
             Insets systemBars = insets.getInsets(WindowInsetsCompat.Type.systemBars());
             v.setPadding(systemBars.left, systemBars.top, systemBars.right, 0);
@@ -118,6 +158,11 @@ public class NewPaintingActivity extends AppCompatActivity {
             }
         }
 
+        if (retainedSession != null) {
+            drawingView.attachSession(retainedSession);
+            retainedSession = null;
+        }
+
         selectTool(toolBrush);
         
         sbSize.setProgress((int) drawingView.getStrokeWidth());
@@ -132,6 +177,17 @@ public class NewPaintingActivity extends AppCompatActivity {
         tvHardnessValue.setText(String.valueOf(sbHardness.getProgress()));
     }
 
+    @Override
+    protected void onDestroy() {
+        // Keep layers and undo history alive while the activity is being recreated
+        if (isChangingConfigurations()) {
+            retainedSession = drawingView.detachSession();
+        } else {
+            drawingView.release();
+        }
+        super.onDestroy();
+    }
+
     private void initViews() {
         drawingView = findViewById(R.id.drawingView);
         btnBack = findViewById(R.id.btnBack);
@@ -165,6 +221,14 @@ public class NewPaintingActivity extends AppCompatActivity {
         symHorizontal = findViewById(R.id.symHorizontal);
         symRadial = findViewById(R.id.symRadial);
 
+        selectionPanel = findViewById(R.id.selectionPanel);
+        selectRect = findViewById(R.id.selectRect);
+        selectWand = findViewById(R.id.selectWand);
+        selectLasso = findViewById(R.id.selectLasso);
+        selectAdd = findViewById(R.id.selectAdd);
+        selectSubtract = findViewById(R.id.selectSubtract);
+        sbWandTolerance = findViewById(R.id.sbWandTolerance);
+
         sbSize = findViewById(R.id.sbSize);
         sbOpacity = findViewById(R.id.sbOpacity);
         sbHardness = findViewById(R.id.sbHardness);
@@ -217,9 +281,10 @@ public class NewPaintingActivity extends AppCompatActivity {
                 drawingView.stopTimelapse();
                 btnTimelapse.setImageTintList(ColorStateList.valueOf(getThemeColor(R.attr.mainTextColor)));
                 showTimelapseOptionsDialog();
-            } else {
-                drawingView.startTimelapse();
+            } else if (drawingView.startTimelapse()) {
                 btnTimelapse.setImageTintList(ColorStateList.valueOf(Color.RED));
+            } else {
+                Toast.makeText(this, "Не удалось начать запись", Toast.LENGTH_SHORT).show();
             }
         });
 
@@ -243,13 +308,27 @@ public class NewPaintingActivity extends AppCompatActivity {
         toolBrush.setOnClickListener(v -> { selectTool(toolBrush); drawingView.setEraserMode(false); });
         toolEraser.setOnClickListener(v -> { selectTool(toolEraser); drawingView.setEraserMode(true); });
         toolFill.setOnClickListener(v -> { selectTool(toolFill); drawingView.setFillMode(true); });
+        toolFill.setOnLongClickListener(v -> {
+            selectTool(toolFill);
+            drawingView.setFillMode(true);
+            showFillOptionsDialog();
+            return true;
+        });
         toolPicker.setOnClickListener(v -> { selectTool(toolPicker); drawingView.setPickerMode(true); });
         toolShapes.setOnClickListener(v -> {
             if (shapesPanel.getVisibility() == View.VISIBLE) shapesPanel.setVisibility(View.GONE);
             else { selectTool(toolShapes); shapesPanel.setVisibility(View.VISIBLE); }
         });
         toolText.setOnClickListener(v -> { selectTool(toolText); drawingView.setTextMode(true); });
-        toolSelect.setOnClickListener(v -> { selectTool(toolSelect); drawingView.setSelectMode(true); });
+        toolSelect.setOnClickListener(v -> {
+            if (selectionPanel.getVisibility() == View.VISIBLE) selectionPanel.setVisibility(View.GONE);
+            else {
+                selectTool(toolSelect);
+                drawingView.setSelectMode(true);
+                updateSelectionUI();
+                selectionPanel.setVisibility(View.VISIBLE);
+            }
+        });
         toolSymmetry.setOnClickListener(v -> {
              if (symmetryPanel.getVisibility() == View.VISIBLE) symmetryPanel.setVisibility(View.GONE);
              else { selectTool(toolSymmetry); updateSymmetryUI(); symmetryPanel.setVisibility(View.VISIBLE); }
@@ -269,6 +348,27 @@ public class NewPaintingActivity extends AppCompatActivity {
         symHorizontal.setOnClickListener(v -> selectSymmetry(DrawingView.SymmetryType.HORIZONTAL, symHorizontal));
         symRadial.setOnClickListener(v -> selectSymmetry(DrawingView.SymmetryType.RADIAL, symRadial));
 
+        selectRect.setOnClickListener(v -> {
+            drawingView.setSelectionTool(DrawingView.SelectionTool.RECT);
+            updateSelectionUI();
+        });
+        selectWand.setOnClickListener(v -> {
+            drawingView.setSelectionTool(DrawingView.SelectionTool.WAND);
+            updateSelectionUI();
+        });
+        selectLasso.setOnClickListener(v -> {
+            drawingView.setSelectionTool(DrawingView.SelectionTool.LASSO);
+            updateSelectionUI();
+        });
+        selectAdd.setOnClickListener(v -> toggleSelectionOp(SelectionMask.Op.ADD));
+        selectSubtract.setOnClickListener(v -> toggleSelectionOp(SelectionMask.Op.SUBTRACT));
+        sbWandTolerance.setProgress(drawingView.getWandTolerance());
+        sbWandTolerance.setOnSeekBarChangeListener(new SimpleSeekBarListener() {
+            @Override public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                if (fromUser) drawingView.setWandTolerance(progress);
+            }
+        });
+
         sbSize.setOnSeekBarChangeListener(new SimpleSeekBarListener() {
             @Override public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
                 drawingView.setStrokeWidth(Math.max(1, progress));
@@ -292,19 +392,69 @@ public class NewPaintingActivity extends AppCompatActivity {
 
         drawingView.setOnColorPickedListener(this::updateCurrentColorUI);
         drawingView.setOnTextRequestListener(this::showTextInputDialog);
+        drawingView.setOnFillProgressListener(new DrawingView.OnFillProgressListener() {
+            @Override public void onFillProgress(int percent) { showFillProgress(percent); }
+            @Override public void onFillFinished() {
+                if (fillProgressDialog != null) {
+                    fillProgressDialog.dismiss();
+                    fillProgressDialog = null;
+                }
+            }
+        });
+    }
+
+    // Only shown for fills slow enough to report progress at all
+    private void showFillProgress(int percent) {
+        if (fillProgressDialog == null) {
+            fillProgressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
+            fillProgressBar.setMax(100);
+            fillProgressBar.setPadding(40, 40, 40, 40);
+
+            fillProgressDialog = new MaterialAlertDialogBuilder(this)
+                    .setTitle("Заливка")
+                    .setView(fillProgressBar)
+                    .setNegativeButton("Отмена", (dialog, which) -> drawingView.cancelFill())
+                    .setCancelable(false)
+                    .create();
+            fillProgressDialog.show();
+        }
+        fillProgressBar.setProgress(percent);
     }
 
     private void showTimelapseOptionsDialog() {
         if (drawingView.getFrameCount() < 2) return;
+        StrokeLog strokeLog = drawingView.getStrokeLog();
+        if (strokeLog != null) {
+            showStrokeLogExportDialog(strokeLog);
+            return;
+        }
+        TimelapseRecorder recorder = drawingView.getTimelapseRecorder();
+        if (recorder == null) return;
+        int[] selected = {0};
+        new MaterialAlertDialogBuilder(this)
+                .setTitle("Таймлапс готов (" + drawingView.getFrameCount() + " кадров)")
+                .setSingleChoiceItems(TIMELAPSE_DURATION_NAMES, 0, (dialog, which) -> selected[0] = which)
+                .setPositiveButton("Экспорт", (dialog, which) ->
+                        TimelapseExporter.export(this, recorder, TIMELAPSE_DURATIONS[selected[0]], showExportProgress()))
+                .setNegativeButton("Отмена", null)
+                .show();
+    }
+
+    private void showStrokeLogExportDialog(StrokeLog strokeLog) {
+        int[] selected = {0};
         new MaterialAlertDialogBuilder(this)
                 .setTitle("Таймлапс готов")
-                .setMessage("Сохранить процесс (" + drawingView.getFrameCount() + " кадров)?")
-                .setPositiveButton("Экспорт", (dialog, which) -> startTimelapseExport())
+                .setSingleChoiceItems(STROKE_LOG_PRESET_NAMES, 0, (dialog, which) -> selected[0] = which)
+                .setPositiveButton("Экспорт", (dialog, which) -> {
+                    int[] preset = STROKE_LOG_PRESETS[selected[0]];
+                    TimelapseExporter.exportStrokeLog(this, strokeLog, preset[0], preset[1], preset[2], showExportProgress());
+                })
                 .setNegativeButton("Отмена", null)
                 .show();
     }
 
-    private void startTimelapseExport() {
+    // Shows the export progress dialog and returns the listener that drives it
+    private TimelapseExporter.ExportListener showExportProgress() {
         ProgressBar progressBar = new ProgressBar(this, null, android.R.attr.progressBarStyleHorizontal);
         progressBar.setMax(100);
         progressBar.setPadding(40, 40, 40, 40);
@@ -317,7 +467,7 @@ public class NewPaintingActivity extends AppCompatActivity {
                 .create();
         progressDialog.show();
 
-        TimelapseExporter.export(this, drawingView.getTimelapseDir(), new TimelapseExporter.ExportListener() {
+        return new TimelapseExporter.ExportListener() {
             @Override public void onProgress(int progress) { progressBar.setProgress(progress); }
             @Override public void onComplete(Uri uri) {
                 progressDialog.dismiss();
@@ -327,7 +477,7 @@ public class NewPaintingActivity extends AppCompatActivity {
                 startActivity(Intent.createChooser(shareIntent, "Поделиться"));
             }
             @Override public void onError(String error) { progressDialog.dismiss(); }
-        });
+        };
     }
 
     private void showSaveDialog() {
@@ -394,6 +544,25 @@ public class NewPaintingActivity extends AppCompatActivity {
         toSelect.setImageTintList(ColorStateList.valueOf(getColor(R.color.purple_main)));
     }
 
+    private void toggleSelectionOp(SelectionMask.Op op) {
+        drawingView.setSelectionOp(drawingView.getSelectionOp() == op ? SelectionMask.Op.REPLACE : op);
+        updateSelectionUI();
+    }
+
+    private void updateSelectionUI() {
+        int iconColor = getThemeColor(R.attr.mainTextColor);
+        int selectedColor = getColor(R.color.purple_main);
+        DrawingView.SelectionTool tool = drawingView.getSelectionTool();
+        boolean isWand = tool == DrawingView.SelectionTool.WAND;
+        SelectionMask.Op op = drawingView.getSelectionOp();
+        selectRect.setImageTintList(ColorStateList.valueOf(tool == DrawingView.SelectionTool.RECT ? selectedColor : iconColor));
+        selectWand.setImageTintList(ColorStateList.valueOf(isWand ? selectedColor : iconColor));
+        selectLasso.setImageTintList(ColorStateList.valueOf(tool == DrawingView.SelectionTool.LASSO ? selectedColor : iconColor));
+        selectAdd.setImageTintList(ColorStateList.valueOf(op == SelectionMask.Op.ADD ? selectedColor : iconColor));
+        selectSubtract.setImageTintList(ColorStateList.valueOf(op == SelectionMask.Op.SUBTRACT ? selectedColor : iconColor));
+        sbWandTolerance.setVisibility(isWand ? View.VISIBLE : View.GONE);
+    }
+
     private void updateCurrentColorUI(int color) {
         drawingView.setColor(color);
         currentColorPreview.setBackgroundTintList(ColorStateList.valueOf(color));
@@ -401,6 +570,40 @@ public class NewPaintingActivity extends AppCompatActivity {
         if (paletteAdapter != null) paletteAdapter.setSelectedColor(color);
     }
 
+    private void showFillOptionsDialog() {
+        LinearLayout layout = new LinearLayout(this);
+        layout.setOrientation(LinearLayout.VERTICAL);
+        int padding = dpToPx(20);
+        layout.setPadding(padding, padding, padding, 0);
+
+        TextView toleranceLabel = new TextView(this);
+        toleranceLabel.setText("Допуск: " + drawingView.getFillTolerance() + "%");
+        layout.addView(toleranceLabel);
+
+        SeekBar toleranceBar = new SeekBar(this);
+        toleranceBar.setMax(100);
+        toleranceBar.setProgress(drawingView.getFillTolerance());
+        toleranceBar.setOnSeekBarChangeListener(new SimpleSeekBarListener() {
+            @Override public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
+                drawingView.setFillTolerance(progress);
+                toleranceLabel.setText("Допуск: " + progress + "%");
+            }
+        });
+        layout.addView(toleranceBar);
+
+        CheckBox sampleAll = new CheckBox(this);
+        sampleAll.setText("Учитывать все слои");
+        sampleAll.setChecked(drawingView.isFillSampleAllLayers());
+        sampleAll.setOnCheckedChangeListener((buttonView, isChecked) -> drawingView.setFillSampleAllLayers(isChecked));
+        layout.addView(sampleAll);
+
+        new MaterialAlertDialogBuilder(this)
+                .setTitle("Заливка")
+                .setView(layout)
+                .setPositiveButton("OK", null)
+                .show();
+    }
+
     private void showTextInputDialog(float x, float y) {
         final EditText input = new EditText(this);
         input.setPadding(40, 40, 40, 40);
@@ -421,6 +624,7 @@ public class NewPaintingActivity extends AppCompatActivity {
         for (ImageButton t : tools) t.setImageTintList(ColorStateList.valueOf(iconColor));
         shapesPanel.setVisibility(View.GONE);
         symmetryPanel.setVisibility(View.GONE);
+        selectionPanel.setVisibility(View.GONE);
     }
 
     private void selectTool(ImageButton selected) {
@@ -485,7 +689,7 @@ public class NewPaintingActivity extends AppCompatActivity {
             DrawingView.Layer layer = getItem(position);
             ((TextView)convertView.findViewById(R.id.txtLayerName)).setText(layer.name);
             ((CheckBox)convertView.findViewById(R.id.checkVisibility)).setChecked(layer.isVisible);
-            ((ImageView)convertView.findViewById(R.id.imgLayerPreview)).setImageBitmap(layer.bitmap);
+            ((ImageView)convertView.findViewById(R.id.imgLayerPreview)).setImageBitmap(layer.tiles.createThumbnail(dpToPx(60)));
             convertView.setOnClickListener(v -> { drawingView.setCurrentLayerIndex(position); notifyDataSetChanged(); });
             return convertView;
         }
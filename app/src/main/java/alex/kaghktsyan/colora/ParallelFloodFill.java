@@ -0,0 +1,319 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flood fill that works on the layer's tiles in parallel. Every tile is flooded by its own
+ * {@link FloodFill}; spans that reach a tile edge become seeds for the neighbouring tile,
+ * which is (re)scheduled on the fork-join pool. Once no tile has seeds left, the changed
+ * tiles are handed to the UI thread, which only swaps them in.
+ *
+ * Between runs a tile's progress lives in its result bitmap and its fill's visited set; the
+ * int buffers a run works in belong to the pool thread and are reused for every tile it runs.
+ *
+ * The source layer must not be edited while the fill is running; cancel() returns only once
+ * nothing reads it any more.
+ */
+public class ParallelFloodFill {
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    private static final long PROGRESS_INTERVAL_MS = 100;
+
+    public interface Callback {
+        // Percentage of the layer filled so far; called on the main thread at most every 100 ms
+        void onProgress(int percent);
+        // Called on the main thread, unless the fill was cancelled
+        void onComplete(List<TileResult> results);
+    }
+
+    public static class TileResult {
+        public final int col;
+        public final int row;
+        public final Bitmap tile;
+        // Changed area in layer coordinates
+        public final Rect bounds;
+
+        TileResult(int col, int row, Bitmap tile, Rect bounds) {
+            this.col = col;
+            this.row = row;
+            this.tile = tile;
+            this.bounds = bounds;
+        }
+    }
+
+    private class TileTask implements Runnable, FloodFill.SpanListener {
+        final int col;
+        final int row;
+        final int width;
+        final int height;
+        private FloodFill fill;
+        // The tile as filled so far, replacing the layer's tile when the fill completes
+        private Bitmap tile;
+        // Pending seed spans as (y, left, right) triples; swapped with drained while running
+        private int[] seeds = new int[12];
+        private int seedCount;
+        private int[] drained = new int[12];
+        private boolean scheduled;
+        private int reportedCount;
+
+        TileTask(int col, int row) {
+            this.col = col;
+            this.row = row;
+            this.width = Math.min(TiledBitmap.TILE_SIZE, source.getWidth() - col * TiledBitmap.TILE_SIZE);
+            this.height = Math.min(TiledBitmap.TILE_SIZE, source.getHeight() - row * TiledBitmap.TILE_SIZE);
+        }
+
+        void addSeed(int y, int left, int right) {
+            synchronized (this) {
+                if (seedCount + 3 > seeds.length) {
+                    seeds = Arrays.copyOf(seeds, seeds.length * 2);
+                }
+                seeds[seedCount++] = y;
+                seeds[seedCount++] = left;
+                seeds[seedCount++] = right;
+                if (scheduled) return;
+                scheduled = true;
+            }
+            pending.incrementAndGet();
+            POOL.execute(this);
+        }
+
+        @Override
+        public void run() {
+            int[][] buffers = workerBuffers.get();
+            boolean isLoaded = false;
+            int newlyFilled = 0;
+            while (true) {
+                int count;
+                synchronized (this) {
+                    // The pixels are stored before scheduled is cleared, as the next run loads them
+                    if (cancelled || (seedCount == 0 && !isLoaded)) {
+                        if (fill != null) {
+                            // Only one run of a tile is ever past this point, so the count cannot race
+                            int filled = fill.getFilledCount();
+                            newlyFilled = filled - reportedCount;
+                            reportedCount = filled;
+                        }
+                        seedCount = 0;
+                        scheduled = false;
+                        break;
+                    }
+                    int[] batch = seeds;
+                    seeds = drained;
+                    drained = batch;
+                    count = seedCount;
+                    seedCount = 0;
+                }
+                if (count == 0) {
+                    store(buffers[0]);
+                    isLoaded = false;
+                    continue;
+                }
+                if (!isLoaded) {
+                    load(buffers[0], buffers[1]);
+                    isLoaded = true;
+                }
+                for (int i = 0; i < count; i += 3) {
+                    int y = drained[i];
+                    for (int x = drained[i + 1]; x <= drained[i + 2]; x++) {
+                        fill.fillFrom(x, y);
+                    }
+                }
+            }
+            if (newlyFilled > 0) reportProgress(newlyFilled);
+            if (pending.decrementAndGet() == 0) {
+                finish();
+                synchronized (pending) {
+                    pending.notifyAll();
+                }
+            }
+        }
+
+        // Loads the tile as filled so far, or the layer's tile on the first run, into this thread's buffers
+        private void load(int[] pixels, int[] samples) {
+            Bitmap from = tile != null ? tile : source.getTile(col, row);
+            if (from != null) {
+                from.getPixels(pixels, 0, width, 0, 0, width, height);
+            } else {
+                Arrays.fill(pixels, 0, width * height, 0);
+            }
+            if (sample != null) {
+                sample.getPixels(samples, 0, width, col * TiledBitmap.TILE_SIZE, row * TiledBitmap.TILE_SIZE, width, height);
+            } else {
+                samples = null;
+            }
+            if (fill == null) {
+                fill = new FloodFill();
+                fill.reset(pixels, samples, width, height, targetColor, replacementColor, tolerance);
+                fill.setSpanListener(this);
+            } else {
+                fill.setBuffers(pixels, samples);
+            }
+        }
+
+        private void store(int[] pixels) {
+            if (fill.isEmpty()) return;
+            if (tile == null) {
+                tile = Bitmap.createBitmap(TiledBitmap.TILE_SIZE, TiledBitmap.TILE_SIZE, Bitmap.Config.ARGB_8888);
+            }
+            tile.setPixels(pixels, 0, width, 0, 0, width, height);
+        }
+
+        // Runs on this tile's thread while it fills; hands edge spans to the neighbours
+        @Override
+        public void onSpan(int y, int left, int right) {
+            if (y == 0 && row > 0) {
+                task(col, row - 1).addSeed(TiledBitmap.TILE_SIZE - 1, left, right);
+            }
+            if (y == height - 1 && row < source.getRows() - 1) {
+                task(col, row + 1).addSeed(0, left, right);
+            }
+            if (left == 0 && col > 0) {
+                task(col - 1, row).addSeed(y, TiledBitmap.TILE_SIZE - 1, TiledBitmap.TILE_SIZE - 1);
+            }
+            if (right == width - 1 && col < source.getColumns() - 1) {
+                task(col + 1, row).addSeed(y, 0, 0);
+            }
+        }
+
+        TileResult buildResult() {
+            if (tile == null) return null;
+            Rect bounds = new Rect();
+            fill.getBounds(bounds);
+            bounds.offset(col * TiledBitmap.TILE_SIZE, row * TiledBitmap.TILE_SIZE);
+            TileResult result = new TileResult(col, row, tile, bounds);
+            tile = null;
+            fill = null;
+            return result;
+        }
+
+        void recycle() {
+            if (tile != null) tile.recycle();
+            tile = null;
+            fill = null;
+        }
+    }
+
+    private final TiledBitmap source;
+    private final Bitmap sample;
+    private final int startX;
+    private final int startY;
+    private final int targetColor;
+    private final int replacementColor;
+    private final int tolerance;
+    private final Callback callback;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final TileTask[] tasks;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicLong filledPixels = new AtomicLong();
+    private final AtomicLong lastProgressTime = new AtomicLong();
+    // Pixels and samples of the tile a pool thread is running, one tile in size
+    private final ThreadLocal<int[][]> workerBuffers = new ThreadLocal<int[][]>() {
+        @Override
+        protected int[][] initialValue() {
+            int size = TiledBitmap.TILE_SIZE * TiledBitmap.TILE_SIZE;
+            return new int[][]{new int[size], new int[size]};
+        }
+    };
+    private volatile boolean cancelled = false;
+
+    // sample, if not null, is a layer-sized image the region is searched in instead of source
+    public ParallelFloodFill(TiledBitmap source, Bitmap sample, int x, int y, int targetColor, int replacementColor, int tolerance, Callback callback) {
+        this.source = source;
+        this.sample = sample;
+        this.startX = x;
+        this.startY = y;
+        this.targetColor = targetColor;
+        this.replacementColor = replacementColor;
+        this.tolerance = tolerance;
+        this.callback = callback;
+        this.tasks = new TileTask[source.getColumns() * source.getRows()];
+    }
+
+    public void start() {
+        if (startX < 0 || startY < 0 || startX >= source.getWidth() || startY >= source.getHeight()) return;
+        int size = TiledBitmap.TILE_SIZE;
+        lastProgressTime.set(SystemClock.uptimeMillis());
+        task(startX / size, startY / size).addSeed(startY % size, startX % size, startX % size);
+    }
+
+    /**
+     * Stops the fill and waits for the tiles still running, after which the source and sample
+     * may be edited or recycled. The callback will not be called after this returns.
+     */
+    public void cancel() {
+        cancelled = true;
+        boolean isInterrupted = false;
+        synchronized (pending) {
+            // Running tiles see the flag at their next batch of seeds, so this is at most one batch per thread
+            while (pending.get() > 0) {
+                try {
+                    pending.wait();
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                }
+            }
+        }
+        if (isInterrupted) Thread.currentThread().interrupt();
+    }
+
+    private TileTask task(int col, int row) {
+        int index = row * source.getColumns() + col;
+        synchronized (tasks) {
+            TileTask task = tasks[index];
+            if (task == null) {
+                task = new TileTask(col, row);
+                tasks[index] = task;
+            }
+            return task;
+        }
+    }
+
+    private void reportProgress(int newlyFilled) {
+        long filled = filledPixels.addAndGet(newlyFilled);
+        long now = SystemClock.uptimeMillis();
+        long last = lastProgressTime.get();
+        if (now - last < PROGRESS_INTERVAL_MS || !lastProgressTime.compareAndSet(last, now)) return;
+        int percent = (int) (filled * 100 / Math.max(1L, (long) source.getWidth() * source.getHeight()));
+        mainHandler.post(() -> {
+            if (!cancelled) callback.onProgress(percent);
+        });
+    }
+
+    // Runs on the pool once every tile has run out of seeds
+    private void finish() {
+        if (cancelled) {
+            synchronized (tasks) {
+                for (TileTask task : tasks) {
+                    if (task != null) task.recycle();
+                }
+            }
+            return;
+        }
+        List<TileResult> results = new ArrayList<>();
+        synchronized (tasks) {
+            for (TileTask task : tasks) {
+                TileResult result = task != null ? task.buildResult() : null;
+                if (result != null) results.add(result);
+            }
+        }
+        mainHandler.post(() -> {
+            if (cancelled) {
+                for (TileResult result : results) result.tile.recycle();
+            } else {
+                callback.onComplete(results);
+            }
+        });
+    }
+}
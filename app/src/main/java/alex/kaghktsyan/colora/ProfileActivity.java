@@ -13,6 +13,11 @@ public class ProfileActivity extends AppCompatActivity {
 
     private static final String PREFS_NAME = "theme_prefs";
     private static final String KEY_IS_NIGHT_MODE = "is_night_mode";
+    private static final String KEY_HARDWARE_RENDERING = "hardware_rendering";
+    private static final String KEY_LOW_LATENCY_INK = "low_latency_ink";
+    private static final String KEY_RENDER_THREAD = "render_thread";
+    private static final String KEY_LIVE_TIMELAPSE = "live_timelapse";
+    private static final String KEY_STROKE_LOG_TIMELAPSE = "stroke_log_timelapse";
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -47,6 +52,31 @@ public class ProfileActivity extends AppCompatActivity {
             }, 300);
         });
 
+        SwitchMaterial switchHardwareRendering = findViewById(R.id.switch_hardware_rendering);
+        switchHardwareRendering.setChecked(prefs.getBoolean(KEY_HARDWARE_RENDERING, true));
+        switchHardwareRendering.setOnCheckedChangeListener((buttonView, isChecked) ->
+                prefs.edit().putBoolean(KEY_HARDWARE_RENDERING, isChecked).apply());
+
+        SwitchMaterial switchLowLatencyInk = findViewById(R.id.switch_low_latency_ink);
+        switchLowLatencyInk.setChecked(prefs.getBoolean(KEY_LOW_LATENCY_INK, false));
+        switchLowLatencyInk.setOnCheckedChangeListener((buttonView, isChecked) ->
+                prefs.edit().putBoolean(KEY_LOW_LATENCY_INK, isChecked).apply());
+
+        SwitchMaterial switchRenderThread = findViewById(R.id.switch_render_thread);
+        switchRenderThread.setChecked(prefs.getBoolean(KEY_RENDER_THREAD, false));
+        switchRenderThread.setOnCheckedChangeListener((buttonView, isChecked) ->
+                prefs.edit().putBoolean(KEY_RENDER_THREAD, isChecked).apply());
+
+        SwitchMaterial switchLiveTimelapse = findViewById(R.id.switch_live_timelapse);
+        switchLiveTimelapse.setChecked(prefs.getBoolean(KEY_LIVE_TIMELAPSE, true));
+        switchLiveTimelapse.setOnCheckedChangeListener((buttonView, isChecked) ->
+                prefs.edit().putBoolean(KEY_LIVE_TIMELAPSE, isChecked).apply());
+
+        SwitchMaterial switchStrokeLogTimelapse = findViewById(R.id.switch_stroke_log_timelapse);
+        switchStrokeLogTimelapse.setChecked(prefs.getBoolean(KEY_STROKE_LOG_TIMELAPSE, false));
+        switchStrokeLogTimelapse.setOnCheckedChangeListener((buttonView, isChecked) ->
+                prefs.edit().putBoolean(KEY_STROKE_LOG_TIMELAPSE, isChecked).apply());
+
         BottomNavigationView navView = findViewById(R.id.nav_view);
         navView.setSelectedItemId(R.id.navigation_profile);
 
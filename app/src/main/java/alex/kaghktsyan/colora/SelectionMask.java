@@ -0,0 +1,219 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Layer-sized selection stored as a packed row-major bitset (one bit per pixel). Selections
+ * are combined word by word; an ALPHA_8 bitmap for drawing and compositing is only built
+ * when asked for, and only after the bits have changed.
+ */
+public class SelectionMask {
+
+    public enum Op {
+        REPLACE, ADD, SUBTRACT
+    }
+
+    private final int width;
+    private final int height;
+    private final long[] bits;
+    private final Rect bounds = new Rect();
+    private Bitmap alphaBitmap;
+    private byte[] alphaBytes;
+    private boolean isBitmapDirty = true;
+    // Edge crossings of the scanline being rasterized
+    private float[] crossings = new float[16];
+
+    public SelectionMask(int width, int height) {
+        this.width = width;
+        this.height = height;
+        this.bits = new long[(width * height + 63) >>> 6];
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isEmpty() {
+        return bounds.isEmpty();
+    }
+
+    // Smallest rect holding every selected pixel; empty if nothing is selected
+    public Rect getBounds() {
+        return bounds;
+    }
+
+    public boolean contains(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return false;
+        int i = y * width + x;
+        return (bits[i >>> 6] & (1L << i)) != 0;
+    }
+
+    // The live bitset; callers that write to it must call onBitsChanged()
+    public long[] getBits() {
+        return bits;
+    }
+
+    public void copyBitsTo(long[] dest) {
+        System.arraycopy(bits, 0, dest, 0, bits.length);
+    }
+
+    /**
+     * Sets this mask to base combined with other, both bitsets of this mask's size.
+     * base may be this mask's own bits.
+     */
+    public void combine(long[] base, long[] other, Op op) {
+        switch (op) {
+            case REPLACE:
+                System.arraycopy(other, 0, bits, 0, bits.length);
+                break;
+            case ADD:
+                for (int i = 0; i < bits.length; i++) bits[i] = base[i] | other[i];
+                break;
+            case SUBTRACT:
+                for (int i = 0; i < bits.length; i++) bits[i] = base[i] & ~other[i];
+                break;
+        }
+        onBitsChanged();
+    }
+
+    /**
+     * Rasterizes the closed polygon given as pointCount x/y pairs into out (a bitset of this
+     * mask's size) with the even-odd rule. A pixel is inside if its centre is.
+     */
+    public void rasterizePolygon(float[] points, int pointCount, long[] out) {
+        Arrays.fill(out, 0L);
+        if (pointCount < 3) return;
+        float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < pointCount; i++) {
+            minY = Math.min(minY, points[i * 2 + 1]);
+            maxY = Math.max(maxY, points[i * 2 + 1]);
+        }
+        int firstRow = Math.max(0, (int) Math.ceil(minY - 0.5f));
+        int lastRow = Math.min(height - 1, (int) Math.ceil(maxY - 0.5f) - 1);
+
+        for (int y = firstRow; y <= lastRow; y++) {
+            float cy = y + 0.5f;
+            int count = 0;
+            float x0 = points[(pointCount - 1) * 2], y0 = points[(pointCount - 1) * 2 + 1];
+            for (int i = 0; i < pointCount; i++) {
+                float x1 = points[i * 2], y1 = points[i * 2 + 1];
+                if ((y0 <= cy && cy < y1) || (y1 <= cy && cy < y0)) {
+                    if (count == crossings.length) crossings = Arrays.copyOf(crossings, count * 2);
+                    crossings[count++] = x0 + (cy - y0) * (x1 - x0) / (y1 - y0);
+                }
+                x0 = x1;
+                y0 = y1;
+            }
+            // Insertion sort: a scanline rarely crosses more than a handful of edges
+            for (int i = 1; i < count; i++) {
+                float v = crossings[i];
+                int j = i - 1;
+                while (j >= 0 && crossings[j] > v) {
+                    crossings[j + 1] = crossings[j];
+                    j--;
+                }
+                crossings[j + 1] = v;
+            }
+            for (int i = 0; i + 1 < count; i += 2) {
+                int left = Math.max(0, (int) Math.ceil(crossings[i] - 0.5f));
+                int right = Math.min(width, (int) Math.ceil(crossings[i + 1] - 0.5f));
+                if (left < right) setRange(out, y * width + left, y * width + right);
+            }
+        }
+    }
+
+    // Sets bits [from, to) of a bitset, a word at a time where possible
+    private static void setRange(long[] out, int from, int to) {
+        int firstWord = from >>> 6;
+        int lastWord = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (firstWord == lastWord) {
+            out[firstWord] |= firstMask & lastMask;
+            return;
+        }
+        out[firstWord] |= firstMask;
+        for (int w = firstWord + 1; w < lastWord; w++) out[w] = -1L;
+        out[lastWord] |= lastMask;
+    }
+
+    public void clear() {
+        Arrays.fill(bits, 0L);
+        onBitsChanged();
+    }
+
+    public void onBitsChanged() {
+        updateBounds();
+        isBitmapDirty = true;
+    }
+
+    private void updateBounds() {
+        int minX = Integer.MAX_VALUE, minY = Integer.MAX_VALUE, maxX = -1, maxY = -1;
+        for (int w = 0; w < bits.length; w++) {
+            long word = bits[w];
+            if (word == 0) continue;
+            int first = (w << 6) + Long.numberOfTrailingZeros(word);
+            int last = (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+            int firstY = first / width;
+            int lastY = last / width;
+            minY = Math.min(minY, firstY);
+            maxY = Math.max(maxY, lastY);
+            if (firstY == lastY) {
+                minX = Math.min(minX, first - firstY * width);
+                maxX = Math.max(maxX, last - lastY * width);
+            } else {
+                // The word wraps across rows, so its set bits are checked one by one
+                while (word != 0) {
+                    int i = (w << 6) + Long.numberOfTrailingZeros(word);
+                    int x = i % width;
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    word &= word - 1;
+                }
+            }
+        }
+        if (maxY < 0) {
+            bounds.setEmpty();
+        } else {
+            bounds.set(minX, minY, maxX + 1, maxY + 1);
+        }
+    }
+
+    // ALPHA_8 copy of the mask (255 = selected), rebuilt only if the bits changed since the last call
+    public Bitmap getAlphaBitmap() {
+        if (alphaBitmap == null) {
+            alphaBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ALPHA_8);
+            alphaBytes = new byte[alphaBitmap.getRowBytes() * height];
+            isBitmapDirty = true;
+        }
+        if (isBitmapDirty) {
+            int stride = alphaBitmap.getRowBytes();
+            Arrays.fill(alphaBytes, (byte) 0);
+            for (int y = bounds.top; y < bounds.bottom; y++) {
+                int rowStart = y * width;
+                int out = y * stride;
+                for (int x = bounds.left; x < bounds.right; x++) {
+                    int i = rowStart + x;
+                    if ((bits[i >>> 6] & (1L << i)) != 0) alphaBytes[out + x] = (byte) 0xFF;
+                }
+            }
+            alphaBitmap.copyPixelsFromBuffer(ByteBuffer.wrap(alphaBytes));
+            isBitmapDirty = false;
+        }
+        return alphaBitmap;
+    }
+
+    public void recycle() {
+        if (alphaBitmap != null) alphaBitmap.recycle();
+        alphaBitmap = null;
+        alphaBytes = null;
+    }
+}
@@ -0,0 +1,608 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Records the edits of a timelapse as a compact operation log instead of frames: stroke samples
+ * with the brush they were drawn with, shapes, text, layer changes, undo and redo. A stroke
+ * costs a few bytes per touch sample, and StrokeLogReplayer can redraw the log at any size and
+ * frame rate. Edits that can only be described by their result are stored as the pixels they
+ * produced: a moved selection, and fills, whose region would come out differently if they
+ * were re-run at another size.
+ *
+ * Every undoable operation is written exactly when the edit lands in UndoHistory, so undo and
+ * redo in the log pair up with the same operations they did in the view.
+ *
+ * Operations are buffered in memory and written to the file by the log's own writer thread,
+ * which also PNG-encodes pixels; the recording thread only copies them.
+ */
+public class StrokeLog {
+
+    public static final int OP_BRUSH = 1;
+    public static final int OP_SYMMETRY = 2;
+    public static final int OP_STROKE = 3;
+    public static final int OP_SHAPE = 4;
+    // 5 was a fill replayed from its seed, before version 2
+    public static final int OP_TEXT = 6;
+    public static final int OP_ADD_LAYER = 7;
+    public static final int OP_REMOVE_LAYER = 8;
+    public static final int OP_BACKGROUND = 9;
+    public static final int OP_PIXELS = 10;
+    public static final int OP_CLEAR_LAYERS = 11;
+    public static final int OP_UNDO = 12;
+    public static final int OP_REDO = 13;
+
+    private static final int MAGIC = 0x434C4F47;
+    private static final int VERSION = 2;
+    private static final String TAG = "StrokeLog";
+    // Buffered operations are handed to the writer once they reach this size
+    private static final int FLUSH_BYTES = 64 * 1024;
+
+    // One decoded operation; which fields are set depends on the type
+    public static class Op {
+        public final int type;
+        public boolean isUndoable;
+        public int layerIndex;
+        // OP_BRUSH, and the background of OP_BACKGROUND
+        public int color;
+        public int alpha;
+        public int hardness;
+        public float width;
+        public float spacing;
+        public boolean isEraser;
+        // OP_SYMMETRY
+        public DrawingView.SymmetryType symmetryType;
+        public int slices;
+        public float centerX, centerY;
+        public DrawingView.ShapeType shape;
+        // Stroke samples or shape ends as x/y pairs; the text origin or pixels position
+        public float[] points;
+        public String text;
+        public byte[] pixels;
+        // The brush and symmetry in effect when a drawing operation was made
+        public Op brush;
+        public Op symmetry;
+
+        Op(int type) {
+            this.type = type;
+        }
+    }
+
+    // A snapshot waiting to be written; nothing is written if a newer snapshot takes it first
+    private static class Snapshot {
+        final Bitmap[] layers;
+        final AtomicBoolean isTaken = new AtomicBoolean();
+
+        Snapshot(Bitmap[] layers) {
+            this.layers = layers;
+        }
+    }
+
+    private final File file;
+    private final int width;
+    private final int height;
+    // Operations not yet handed to the writer; null once finished
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private DataOutputStream out;
+    private final ExecutorService writer = Executors.newSingleThreadExecutor(r -> new Thread(r, "StrokeLogWriter"));
+    // Only used on the writer thread; null if the file could not be written
+    private DataOutputStream fileOut;
+    // The last snapshot, while nothing has been written after it
+    private Snapshot latestSnapshot;
+    private int operationCount = 0;
+    // Undoable operations that undo and redo can still reach, mirroring UndoHistory
+    private int undoDepth = 0;
+    private int redoDepth = 0;
+
+    // Brush and symmetry as last written; an operation writes them again only when they change
+    private int brushColor, brushAlpha, brushHardness;
+    private float brushWidth, brushSpacing;
+    private boolean isBrushEraser;
+    private boolean hasBrush = false;
+    private int symmetryType = -1, symmetrySlices;
+    private float symmetryCenterX, symmetryCenterY;
+
+    private float[] strokePoints = new float[256];
+    private int strokePointCount = 0;
+
+    public StrokeLog(File file, int width, int height, int backgroundColor) {
+        this.file = file;
+        this.width = width;
+        this.height = height;
+        writer.execute(() -> {
+            try {
+                fileOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to open the stroke log", e);
+            }
+        });
+        out = new DataOutputStream(buffer);
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+        } catch (IOException e) {
+            fail(e);
+        }
+        setBackground(backgroundColor);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // Operations that change the picture, so far
+    public int getOperationCount() {
+        return operationCount;
+    }
+
+    public boolean canUndo() {
+        return undoDepth > 0;
+    }
+
+    public boolean canRedo() {
+        return redoDepth > 0;
+    }
+
+    public void setBrush(int color, int alpha, float width, int hardness, float spacing, boolean isEraser) {
+        if (hasBrush && color == brushColor && alpha == brushAlpha && width == brushWidth
+                && hardness == brushHardness && spacing == brushSpacing && isEraser == isBrushEraser) return;
+        hasBrush = true;
+        brushColor = color;
+        brushAlpha = alpha;
+        brushWidth = width;
+        brushHardness = hardness;
+        brushSpacing = spacing;
+        isBrushEraser = isEraser;
+        if (out == null) return;
+        try {
+            out.writeByte(OP_BRUSH);
+            out.writeInt(color);
+            out.writeByte(alpha);
+            out.writeFloat(width);
+            out.writeByte(hardness);
+            out.writeFloat(spacing);
+            out.writeBoolean(isEraser);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public void setSymmetry(DrawingView.SymmetryType type, int slices, float centerX, float centerY) {
+        int ordinal = type.ordinal();
+        if (ordinal == symmetryType && slices == symmetrySlices
+                && centerX == symmetryCenterX && centerY == symmetryCenterY) return;
+        symmetryType = ordinal;
+        symmetrySlices = slices;
+        symmetryCenterX = centerX;
+        symmetryCenterY = centerY;
+        if (out == null) return;
+        try {
+            out.writeByte(OP_SYMMETRY);
+            out.writeByte(ordinal);
+            out.writeByte(slices);
+            out.writeFloat(centerX);
+            out.writeFloat(centerY);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Stroke samples are kept until endStroke(); a stroke that leaves no undo entry is never written
+    public void beginStroke(float x, float y) {
+        strokePointCount = 0;
+        strokeTo(x, y);
+    }
+
+    public void strokeTo(float x, float y) {
+        if (strokePointCount * 2 + 2 > strokePoints.length) {
+            float[] grown = new float[strokePoints.length * 2];
+            System.arraycopy(strokePoints, 0, grown, 0, strokePoints.length);
+            strokePoints = grown;
+        }
+        strokePoints[strokePointCount * 2] = x;
+        strokePoints[strokePointCount * 2 + 1] = y;
+        strokePointCount++;
+    }
+
+    public void endStroke(int layerIndex) {
+        if (beginUndoable(OP_STROKE)) {
+            try {
+                out.writeShort(layerIndex);
+                out.writeInt(strokePointCount);
+                for (int i = 0; i < strokePointCount * 2; i++) {
+                    out.writeFloat(strokePoints[i]);
+                }
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        strokePointCount = 0;
+    }
+
+    public void addShape(int layerIndex, DrawingView.ShapeType shape, float x1, float y1, float x2, float y2) {
+        if (!beginUndoable(OP_SHAPE)) return;
+        try {
+            out.writeShort(layerIndex);
+            out.writeByte(shape.ordinal());
+            out.writeFloat(x1);
+            out.writeFloat(y1);
+            out.writeFloat(x2);
+            out.writeFloat(y2);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Drawn with the current brush colour, alpha and size
+    public void addText(int layerIndex, String text, float x, float y) {
+        if (!beginUndoable(OP_TEXT)) return;
+        try {
+            out.writeShort(layerIndex);
+            out.writeUTF(text);
+            out.writeFloat(x);
+            out.writeFloat(y);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // A layer appended on top; only undoable when the view pushed an undo entry for it
+    public void addLayer(boolean isUndoable) {
+        if (out == null) return;
+        if (isUndoable) pushUndoable();
+        try {
+            out.writeByte(OP_ADD_LAYER);
+            out.writeBoolean(isUndoable);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public void removeLayer(int index) {
+        if (!beginUndoable(OP_REMOVE_LAYER)) return;
+        try {
+            out.writeShort(index);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public void setBackground(int color) {
+        if (out == null) return;
+        operationCount++;
+        try {
+            out.writeByte(OP_BACKGROUND);
+            out.writeInt(color);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /**
+     * The result of an edit the log cannot describe, as the pixels of region placed at (left,
+     * top). The log takes region over and recycles it once it has been encoded.
+     */
+    public void addPixels(int layerIndex, Bitmap region, int left, int top) {
+        if (!beginUndoable(OP_PIXELS)) {
+            region.recycle();
+            return;
+        }
+        try {
+            out.writeShort(layerIndex);
+            out.writeInt(left);
+            out.writeInt(top);
+        } catch (IOException e) {
+            fail(e);
+            region.recycle();
+            return;
+        }
+        flushBuffer();
+        writer.execute(() -> writePng(region));
+    }
+
+    /**
+     * Replaces everything logged so far with the layers as they are now. Used when recording
+     * starts and when the view's state changes in a way the log cannot follow, such as loading
+     * a picture or undoing an edit made before recording started. The layers are copied here
+     * and encoded on the writer; a snapshot that nothing was logged after is dropped in favour
+     * of this one if the writer has not started on it.
+     */
+    public void writeSnapshot(List<DrawingView.Layer> layers) {
+        if (out == null) return;
+        undoDepth = 0;
+        redoDepth = 0;
+        if (buffer.size() == 0 && latestSnapshot != null && latestSnapshot.isTaken.compareAndSet(false, true)) {
+            operationCount -= latestSnapshot.layers.length;
+            for (Bitmap pixels : latestSnapshot.layers) pixels.recycle();
+        } else {
+            flushBuffer();
+        }
+        Bitmap[] copies = new Bitmap[layers.size()];
+        for (int i = 0; i < copies.length; i++) {
+            TiledBitmap tiles = layers.get(i).tiles;
+            copies[i] = Bitmap.createBitmap(tiles.getWidth(), tiles.getHeight(), Bitmap.Config.ARGB_8888);
+            tiles.drawTo(new Canvas(copies[i]), null);
+        }
+        operationCount += copies.length;
+        Snapshot snapshot = new Snapshot(copies);
+        latestSnapshot = snapshot;
+        writer.execute(() -> {
+            if (snapshot.isTaken.compareAndSet(false, true)) writeSnapshotPixels(snapshot.layers);
+        });
+    }
+
+    public void undo() {
+        if (out == null || undoDepth == 0) return;
+        undoDepth--;
+        redoDepth++;
+        operationCount++;
+        try {
+            out.writeByte(OP_UNDO);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    public void redo() {
+        if (out == null || redoDepth == 0) return;
+        redoDepth--;
+        undoDepth++;
+        operationCount++;
+        try {
+            out.writeByte(OP_REDO);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    // Hands the rest to the writer, which closes the file when done; later calls are ignored
+    public void finish() {
+        if (out == null) return;
+        flushBuffer();
+        out = null;
+        writer.execute(() -> {
+            if (fileOut == null) return;
+            try {
+                fileOut.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Failed to close the stroke log", e);
+            }
+            fileOut = null;
+        });
+        writer.shutdown();
+    }
+
+    // Blocks until a finished log has been written out completely
+    public void awaitFinished() throws InterruptedException {
+        writer.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    private boolean beginUndoable(int type) {
+        if (out == null) return false;
+        if (buffer.size() >= FLUSH_BYTES) flushBuffer();
+        pushUndoable();
+        try {
+            out.writeByte(type);
+            out.writeBoolean(true);
+            return true;
+        } catch (IOException e) {
+            fail(e);
+            return false;
+        }
+    }
+
+    private void pushUndoable() {
+        undoDepth++;
+        redoDepth = 0;
+        operationCount++;
+    }
+
+    private void flushBuffer() {
+        if (buffer.size() == 0) return;
+        byte[] bytes = buffer.toByteArray();
+        buffer.reset();
+        latestSnapshot = null;
+        writer.execute(() -> {
+            if (fileOut == null) return;
+            try {
+                fileOut.write(bytes);
+            } catch (IOException e) {
+                failWrite(e);
+            }
+        });
+    }
+
+    // The methods below run on the writer thread
+
+    private void writeSnapshotPixels(Bitmap[] layers) {
+        try {
+            if (fileOut != null) fileOut.writeByte(OP_CLEAR_LAYERS);
+            for (int i = 0; i < layers.length; i++) {
+                if (fileOut != null) {
+                    fileOut.writeByte(OP_ADD_LAYER);
+                    fileOut.writeBoolean(false);
+                    fileOut.writeByte(OP_PIXELS);
+                    fileOut.writeBoolean(false);
+                    fileOut.writeShort(i);
+                    fileOut.writeInt(0);
+                    fileOut.writeInt(0);
+                }
+                writePng(layers[i]);
+            }
+        } catch (IOException e) {
+            failWrite(e);
+            for (Bitmap pixels : layers) {
+                if (!pixels.isRecycled()) pixels.recycle();
+            }
+        }
+    }
+
+    // Writes the length and PNG bytes of pixels, then recycles it
+    private void writePng(Bitmap pixels) {
+        try {
+            if (fileOut == null) return;
+            ByteArrayOutputStream png = new ByteArrayOutputStream();
+            pixels.compress(Bitmap.CompressFormat.PNG, 100, png);
+            fileOut.writeInt(png.size());
+            png.writeTo(fileOut);
+        } catch (IOException e) {
+            failWrite(e);
+        } finally {
+            pixels.recycle();
+        }
+    }
+
+    private void failWrite(IOException e) {
+        Log.e(TAG, "Stroke log write failed", e);
+        if (fileOut != null) {
+            try {
+                fileOut.close();
+            } catch (IOException ignored) {
+            }
+        }
+        fileOut = null;
+    }
+
+    // Writing to the buffer does not fail in practice; drop the broken operation and stop logging if it ever does
+    private void fail(IOException e) {
+        Log.e(TAG, "Stroke log write failed", e);
+        buffer.reset();
+        finish();
+    }
+
+    /**
+     * Reads a finished log and resolves undo and redo, returning only the operations whose
+     * result survived, in order. Undone operations are dropped along with the undo that
+     * removed them, so a replay never shows them. size receives the canvas width and height.
+     */
+    public static List<Op> read(File file, int[] size) throws IOException {
+        List<Op> ops = new ArrayList<>();
+        ArrayDeque<Op> undoStack = new ArrayDeque<>();
+        ArrayDeque<Op> redoStack = new ArrayDeque<>();
+        Op brush = null;
+        Op symmetry = null;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) throw new IOException("Not a stroke log");
+            size[0] = in.readInt();
+            size[1] = in.readInt();
+            int type;
+            while ((type = in.read()) >= 0) {
+                Op op = new Op(type);
+                switch (type) {
+                    case OP_BRUSH:
+                        op.color = in.readInt();
+                        op.alpha = in.readUnsignedByte();
+                        op.width = in.readFloat();
+                        op.hardness = in.readUnsignedByte();
+                        op.spacing = in.readFloat();
+                        op.isEraser = in.readBoolean();
+                        brush = op;
+                        continue;
+                    case OP_SYMMETRY:
+                        op.symmetryType = DrawingView.SymmetryType.values()[in.readUnsignedByte()];
+                        op.slices = in.readUnsignedByte();
+                        op.centerX = in.readFloat();
+                        op.centerY = in.readFloat();
+                        symmetry = op;
+                        continue;
+                    case OP_UNDO:
+                        if (!undoStack.isEmpty()) {
+                            Op undone = undoStack.pop();
+                            ops.remove(ops.lastIndexOf(undone));
+                            redoStack.push(undone);
+                        }
+                        continue;
+                    case OP_REDO:
+                        // Only permanent operations can have come after it, and none of them depend on layer contents
+                        if (!redoStack.isEmpty()) {
+                            Op redone = redoStack.pop();
+                            ops.add(redone);
+                            undoStack.push(redone);
+                        }
+                        continue;
+                    case OP_CLEAR_LAYERS:
+                        undoStack.clear();
+                        redoStack.clear();
+                        break;
+                    case OP_BACKGROUND:
+                        op.color = in.readInt();
+                        break;
+                    default:
+                        op.isUndoable = in.readBoolean();
+                        readEdit(in, op);
+                        break;
+                }
+                op.brush = brush;
+                op.symmetry = symmetry;
+                ops.add(op);
+                if (op.isUndoable) {
+                    undoStack.push(op);
+                    redoStack.clear();
+                }
+            }
+        }
+        return ops;
+    }
+
+    private static void readEdit(DataInputStream in, Op op) throws IOException {
+        switch (op.type) {
+            case OP_STROKE:
+                op.layerIndex = in.readUnsignedShort();
+                op.points = new float[in.readInt() * 2];
+                for (int i = 0; i < op.points.length; i++) op.points[i] = in.readFloat();
+                break;
+            case OP_SHAPE:
+                op.layerIndex = in.readUnsignedShort();
+                op.shape = DrawingView.ShapeType.values()[in.readUnsignedByte()];
+                op.points = new float[]{in.readFloat(), in.readFloat(), in.readFloat(), in.readFloat()};
+                break;
+            case OP_TEXT:
+                op.layerIndex = in.readUnsignedShort();
+                op.text = in.readUTF();
+                op.points = new float[]{in.readFloat(), in.readFloat()};
+                break;
+            case OP_ADD_LAYER:
+                break;
+            case OP_REMOVE_LAYER:
+                op.layerIndex = in.readUnsignedShort();
+                break;
+            case OP_PIXELS:
+                op.layerIndex = in.readUnsignedShort();
+                op.points = new float[]{in.readInt(), in.readInt()};
+                op.pixels = new byte[in.readInt()];
+                in.readFully(op.pixels);
+                break;
+            default:
+                throw new IOException("Unknown operation " + op.type);
+        }
+    }
+}
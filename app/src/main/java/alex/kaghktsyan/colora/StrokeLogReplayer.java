@@ -0,0 +1,293 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BlurMaskFilter;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Path;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Redraws a StrokeLog without a view, at any output size. The picture is rebuilt operation by
+ * operation in bitmaps of the output size, drawn through a scale so strokes stay sharp instead
+ * of being resampled from screen-sized frames.
+ */
+public class StrokeLogReplayer {
+
+    public interface FrameSink {
+        void onFrame(Bitmap frame) throws Exception;
+    }
+
+    public interface ProgressListener {
+        void onProgress(int percent);
+    }
+
+    private final List<StrokeLog.Op> ops;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private int drawingOpCount = 0;
+
+    private int width, height;
+    private float scale;
+    private final List<Bitmap> layers = new ArrayList<>();
+    private int backgroundColor = Color.WHITE;
+    private Bitmap strokeBuffer;
+    private Bitmap frame;
+    private final Canvas canvas = new Canvas();
+    private final BrushEngine brushEngine = new BrushEngine();
+    private final Path trianglePath = new Path();
+    private final Paint dabPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint shapePaint = new Paint();
+    private final Paint textPaint = new Paint();
+    private final Paint layerPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint pixelsPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final PorterDuffXfermode eraseXfermode = new PorterDuffXfermode(PorterDuff.Mode.DST_OUT);
+
+    public StrokeLogReplayer(File logFile) throws IOException {
+        int[] size = new int[2];
+        ops = StrokeLog.read(logFile, size);
+        sourceWidth = size[0];
+        sourceHeight = size[1];
+        for (StrokeLog.Op op : ops) {
+            if (isDrawingOp(op)) drawingOpCount++;
+        }
+
+        shapePaint.setStyle(Paint.Style.STROKE);
+        shapePaint.setStrokeCap(Paint.Cap.ROUND);
+        shapePaint.setStrokeJoin(Paint.Join.ROUND);
+        shapePaint.setAntiAlias(true);
+        textPaint.setAntiAlias(true);
+        pixelsPaint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    }
+
+    public int getSourceWidth() {
+        return sourceWidth;
+    }
+
+    public int getSourceHeight() {
+        return sourceHeight;
+    }
+
+    // Operations that show up in the picture, after undo and redo are resolved
+    public int getDrawingOpCount() {
+        return drawingOpCount;
+    }
+
+    /**
+     * Replays the whole log into frameCount frames of width x height, spreading the operations
+     * evenly over them. When there are fewer operations than frames, frames repeat. The frame
+     * bitmap passed to the sink is reused for the next frame.
+     */
+    public void render(int width, int height, int frameCount, FrameSink sink, ProgressListener listener) throws Exception {
+        this.width = width;
+        this.height = height;
+        scale = Math.min(width / (float) sourceWidth, height / (float) sourceHeight);
+        strokeBuffer = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        try {
+            int next = 0;
+            int drawn = 0;
+            int lastPercent = -1;
+            for (int i = 0; i < frameCount; i++) {
+                int target = (int) Math.ceil((i + 1) * (double) drawingOpCount / frameCount);
+                while (next < ops.size() && (drawn < target || !isDrawingOp(ops.get(next)))) {
+                    StrokeLog.Op op = ops.get(next++);
+                    apply(op);
+                    if (isDrawingOp(op)) drawn++;
+                }
+                composite(frame);
+                sink.onFrame(frame);
+                int percent = (int) ((i + 1) * 100L / frameCount);
+                if (percent != lastPercent) {
+                    lastPercent = percent;
+                    listener.onProgress(percent);
+                }
+            }
+        } finally {
+            for (Bitmap layer : layers) layer.recycle();
+            layers.clear();
+            strokeBuffer.recycle();
+            frame.recycle();
+            brushEngine.release();
+        }
+    }
+
+    private static boolean isDrawingOp(StrokeLog.Op op) {
+        return op.type != StrokeLog.OP_ADD_LAYER && op.type != StrokeLog.OP_CLEAR_LAYERS;
+    }
+
+    private void composite(Bitmap target) {
+        canvas.setBitmap(target);
+        canvas.drawColor(backgroundColor, PorterDuff.Mode.SRC);
+        for (Bitmap layer : layers) {
+            canvas.drawBitmap(layer, 0, 0, null);
+        }
+        canvas.setBitmap(null);
+    }
+
+    private void apply(StrokeLog.Op op) {
+        switch (op.type) {
+            case StrokeLog.OP_BACKGROUND:
+                backgroundColor = op.color;
+                break;
+            case StrokeLog.OP_CLEAR_LAYERS:
+                for (Bitmap layer : layers) layer.recycle();
+                layers.clear();
+                break;
+            case StrokeLog.OP_ADD_LAYER:
+                layers.add(Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888));
+                break;
+            case StrokeLog.OP_REMOVE_LAYER:
+                if (op.layerIndex < layers.size()) layers.remove(op.layerIndex).recycle();
+                break;
+            default:
+                // Edits of a layer that did not exist at this point cannot be shown
+                if (op.layerIndex >= layers.size()) break;
+                applyEdit(op, layers.get(op.layerIndex));
+                break;
+        }
+    }
+
+    private void applyEdit(StrokeLog.Op op, Bitmap layer) {
+        switch (op.type) {
+            case StrokeLog.OP_STROKE:
+                replayStroke(op, layer);
+                break;
+            case StrokeLog.OP_SHAPE:
+                replayShape(op, layer);
+                break;
+            case StrokeLog.OP_TEXT:
+                if (op.brush == null) break;
+                textPaint.setColor(op.brush.color);
+                textPaint.setAlpha(op.brush.alpha);
+                textPaint.setTextSize(op.brush.width * 5);
+                beginDrawing(layer);
+                canvas.drawText(op.text, op.points[0], op.points[1], textPaint);
+                endDrawing();
+                break;
+            case StrokeLog.OP_PIXELS:
+                Bitmap pixels = BitmapFactory.decodeByteArray(op.pixels, 0, op.pixels.length);
+                if (pixels == null) break;
+                beginDrawing(layer);
+                canvas.drawBitmap(pixels, op.points[0], op.points[1], pixelsPaint);
+                endDrawing();
+                pixels.recycle();
+                break;
+        }
+    }
+
+    // Brush dabs go to the stroke buffer at full opacity and are composited with the brush
+    // alpha, as in the view; eraser dabs cut straight into the layer
+    private void replayStroke(StrokeLog.Op op, Bitmap layer) {
+        StrokeLog.Op brush = op.brush;
+        if (brush == null || op.points.length < 2) return;
+        brushEngine.setBrush(brush.width, brush.hardness);
+        brushEngine.setSpacing(brush.spacing);
+        float lastX = op.points[0];
+        float lastY = op.points[1];
+        brushEngine.begin(lastX, lastY);
+        for (int i = 2; i < op.points.length; i += 2) {
+            float x = op.points[i];
+            float y = op.points[i + 1];
+            brushEngine.quadTo(lastX, lastY, (x + lastX) / 2, (y + lastY) / 2);
+            lastX = x;
+            lastY = y;
+        }
+
+        dabPaint.setColor(brush.color);
+        dabPaint.setAlpha(255);
+        dabPaint.setXfermode(brush.isEraser ? eraseXfermode : null);
+        Bitmap target = brush.isEraser ? layer : strokeBuffer;
+        beginDrawing(target);
+        drawSymmetric(op.symmetry, () -> brushEngine.drawDabs(canvas, dabPaint));
+        endDrawing();
+        if (!brush.isEraser) commitStrokeBuffer(layer, brush.alpha);
+    }
+
+    private void replayShape(StrokeLog.Op op, Bitmap layer) {
+        StrokeLog.Op brush = op.brush;
+        if (brush == null) return;
+        shapePaint.setColor(brush.color);
+        shapePaint.setAlpha(255);
+        shapePaint.setStrokeWidth(brush.width);
+        float blurRadius = (brush.width / 2f) * (1f - (brush.hardness / 100f));
+        shapePaint.setMaskFilter(blurRadius > 0 ? new BlurMaskFilter(blurRadius, BlurMaskFilter.Blur.NORMAL) : null);
+
+        float[] p = op.points;
+        beginDrawing(strokeBuffer);
+        drawSymmetric(op.symmetry, () -> drawShape(p[0], p[1], p[2], p[3], op.shape));
+        endDrawing();
+        commitStrokeBuffer(layer, brush.alpha);
+    }
+
+    private void commitStrokeBuffer(Bitmap layer, int alpha) {
+        layerPaint.setAlpha(alpha);
+        canvas.setBitmap(layer);
+        canvas.drawBitmap(strokeBuffer, 0, 0, layerPaint);
+        canvas.setBitmap(null);
+        strokeBuffer.eraseColor(Color.TRANSPARENT);
+    }
+
+    // Points the shared canvas at target, in the coordinates of the logged canvas
+    private void beginDrawing(Bitmap target) {
+        canvas.setBitmap(target);
+        canvas.save();
+        canvas.scale(scale, scale);
+    }
+
+    private void endDrawing() {
+        canvas.restore();
+        canvas.setBitmap(null);
+    }
+
+    private void drawSymmetric(StrokeLog.Op symmetry, Runnable draw) {
+        draw.run();
+        if (symmetry == null || symmetry.symmetryType == DrawingView.SymmetryType.NONE) return;
+
+        canvas.save();
+        if (symmetry.symmetryType == DrawingView.SymmetryType.VERTICAL) {
+            canvas.scale(-1, 1, symmetry.centerX, symmetry.centerY);
+            draw.run();
+        } else if (symmetry.symmetryType == DrawingView.SymmetryType.HORIZONTAL) {
+            canvas.scale(1, -1, symmetry.centerX, symmetry.centerY);
+            draw.run();
+        } else if (symmetry.symmetryType == DrawingView.SymmetryType.RADIAL) {
+            for (int i = 1; i < symmetry.slices; i++) {
+                canvas.rotate(360f / symmetry.slices, symmetry.centerX, symmetry.centerY);
+                draw.run();
+            }
+        }
+        canvas.restore();
+    }
+
+    private void drawShape(float x1, float y1, float x2, float y2, DrawingView.ShapeType shape) {
+        switch (shape) {
+            case LINE:
+                canvas.drawLine(x1, y1, x2, y2, shapePaint);
+                break;
+            case RECT:
+                canvas.drawRect(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2), shapePaint);
+                break;
+            case CIRCLE:
+                float radius = (float) Math.sqrt(Math.pow(x2 - x1, 2) + Math.pow(y2 - y1, 2));
+                canvas.drawCircle(x1, y1, radius, shapePaint);
+                break;
+            case TRIANGLE:
+                trianglePath.rewind();
+                trianglePath.moveTo(x1, y2);
+                trianglePath.lineTo(x2, y2);
+                trianglePath.lineTo((x1 + x2) / 2, y1);
+                trianglePath.close();
+                canvas.drawPath(trianglePath, shapePaint);
+                break;
+        }
+    }
+}
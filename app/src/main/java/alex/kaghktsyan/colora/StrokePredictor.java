@@ -0,0 +1,68 @@
+package alex.kaghktsyan.colora;
+
+/**
+ * Guesses where a stroke is heading from the velocity of its recent samples, so the live
+ * preview can run slightly ahead of the input. Predicted points are only ever drawn as a
+ * preview; they are never committed to a layer.
+ */
+public class StrokePredictor {
+
+    public static final int MAX_POINTS = 3;
+    // Time between predicted points; three of them cover roughly two frames at 60 Hz
+    private static final float STEP_MILLIS = 8;
+    // Weight of the newest sample in the smoothed velocity
+    private static final float SMOOTHING = 0.6f;
+    // Samples further apart than this say nothing about the current speed
+    private static final long MAX_GAP_MILLIS = 50;
+
+    private float lastX, lastY;
+    private long lastTime;
+    private float velocityX, velocityY;
+    private int sampleCount = 0;
+
+    public void reset() {
+        sampleCount = 0;
+        velocityX = 0;
+        velocityY = 0;
+    }
+
+    public void addSample(float x, float y, long eventTime) {
+        if (sampleCount > 0) {
+            long dt = eventTime - lastTime;
+            if (dt <= 0) {
+                // Same timestamp: keep the velocity, just move the origin
+                lastX = x;
+                lastY = y;
+                return;
+            }
+            if (dt > MAX_GAP_MILLIS) {
+                velocityX = 0;
+                velocityY = 0;
+            } else {
+                float vx = (x - lastX) / dt;
+                float vy = (y - lastY) / dt;
+                float weight = sampleCount == 1 ? 1f : SMOOTHING;
+                velocityX = weight * vx + (1 - weight) * velocityX;
+                velocityY = weight * vy + (1 - weight) * velocityY;
+            }
+        }
+        lastX = x;
+        lastY = y;
+        lastTime = eventTime;
+        sampleCount++;
+    }
+
+    /**
+     * Writes up to MAX_POINTS predicted x/y pairs, continuing from the last sample, into out
+     * and returns how many there are. Nothing is predicted until the speed is known.
+     */
+    public int predict(float[] out) {
+        if (sampleCount < 2 || (velocityX == 0 && velocityY == 0)) return 0;
+        for (int i = 0; i < MAX_POINTS; i++) {
+            float t = STEP_MILLIS * (i + 1);
+            out[i * 2] = lastX + velocityX * t;
+            out[i * 2 + 1] = lastY + velocityY * t;
+        }
+        return MAX_POINTS;
+    }
+}
@@ -0,0 +1,270 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+import java.util.Arrays;
+
+/**
+ * Sparse raster made of fixed-size ARGB_8888 tiles. A tile is only allocated the first
+ * time something is painted into it, so empty or mostly empty layers cost almost nothing.
+ */
+public class TiledBitmap {
+
+    public static final int TILE_SIZE = 256;
+
+    public interface TileDrawer {
+        void draw(Canvas canvas);
+    }
+
+    private int width;
+    private int height;
+    private int cols;
+    private int rows;
+    private Bitmap[] tiles = new Bitmap[0];
+
+    private final Canvas tileCanvas = new Canvas();
+
+    public TiledBitmap(int width, int height) {
+        resize(width, height);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getColumns() {
+        return cols;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public Bitmap getTile(int col, int row) {
+        return tiles[row * cols + col];
+    }
+
+    // Puts tile in place of the current one (which may be null) and returns the old tile
+    public Bitmap replaceTile(int col, int row, Bitmap tile) {
+        int index = row * cols + col;
+        Bitmap old = tiles[index];
+        tiles[index] = tile;
+        return old;
+    }
+
+    public int getAllocatedTileCount() {
+        int count = 0;
+        for (Bitmap tile : tiles) {
+            if (tile != null) count++;
+        }
+        return count;
+    }
+
+    public void resize(int newWidth, int newHeight) {
+        int newCols = (newWidth + TILE_SIZE - 1) / TILE_SIZE;
+        int newRows = (newHeight + TILE_SIZE - 1) / TILE_SIZE;
+        Bitmap[] newTiles = new Bitmap[newCols * newRows];
+        for (int row = 0; row < rows; row++) {
+            for (int col = 0; col < cols; col++) {
+                Bitmap tile = tiles[row * cols + col];
+                if (tile == null) continue;
+                if (row < newRows && col < newCols) {
+                    newTiles[row * newCols + col] = tile;
+                } else {
+                    tile.recycle();
+                }
+            }
+        }
+        width = newWidth;
+        height = newHeight;
+        cols = newCols;
+        rows = newRows;
+        tiles = newTiles;
+    }
+
+    private Bitmap ensureTile(int index) {
+        Bitmap tile = tiles[index];
+        if (tile == null) {
+            tile = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+            tiles[index] = tile;
+        }
+        return tile;
+    }
+
+    /**
+     * Runs the drawer once for every tile touched by bounds (in layer coordinates), with the
+     * canvas translated so the drawer can paint in layer coordinates. Null bounds means all tiles.
+     */
+    public void draw(RectF bounds, TileDrawer drawer) {
+        draw(bounds, drawer, true);
+    }
+
+    // With createMissing false, tiles that were never allocated are skipped; for drawers that only remove pixels
+    public void draw(RectF bounds, TileDrawer drawer, boolean createMissing) {
+        int firstCol = 0, firstRow = 0, lastCol = cols - 1, lastRow = rows - 1;
+        if (bounds != null) {
+            if (bounds.right < 0 || bounds.bottom < 0 || bounds.left >= width || bounds.top >= height) return;
+            firstCol = Math.max(0, (int) Math.floor(bounds.left / TILE_SIZE));
+            firstRow = Math.max(0, (int) Math.floor(bounds.top / TILE_SIZE));
+            lastCol = Math.min(cols - 1, (int) Math.ceil(bounds.right / TILE_SIZE) - 1);
+            lastRow = Math.min(rows - 1, (int) Math.ceil(bounds.bottom / TILE_SIZE) - 1);
+        }
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                int index = row * cols + col;
+                if (!createMissing && tiles[index] == null) continue;
+                tileCanvas.setBitmap(ensureTile(index));
+                int save = tileCanvas.save();
+                tileCanvas.translate(-col * TILE_SIZE, -row * TILE_SIZE);
+                drawer.draw(tileCanvas);
+                tileCanvas.restoreToCount(save);
+            }
+        }
+        tileCanvas.setBitmap(null);
+    }
+
+    // Erases every allocated tile touched by bounds, including the parts outside bounds
+    public void clearTiles(RectF bounds) {
+        if (bounds.isEmpty()) return;
+        int firstCol = Math.max(0, (int) Math.floor(bounds.left / TILE_SIZE));
+        int firstRow = Math.max(0, (int) Math.floor(bounds.top / TILE_SIZE));
+        int lastCol = Math.min(cols - 1, (int) Math.ceil(bounds.right / TILE_SIZE) - 1);
+        int lastRow = Math.min(rows - 1, (int) Math.ceil(bounds.bottom / TILE_SIZE) - 1);
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                Bitmap tile = tiles[row * cols + col];
+                if (tile != null) tile.eraseColor(0);
+            }
+        }
+    }
+
+    public void drawTo(Canvas canvas, Paint paint) {
+        drawTo(canvas, paint, null);
+    }
+
+    // Only tiles intersecting clip (in layer coordinates) are drawn; null draws everything
+    public void drawTo(Canvas canvas, Paint paint, Rect clip) {
+        int firstCol = 0, firstRow = 0, lastCol = cols - 1, lastRow = rows - 1;
+        if (clip != null) {
+            firstCol = Math.max(0, clip.left / TILE_SIZE);
+            firstRow = Math.max(0, clip.top / TILE_SIZE);
+            lastCol = Math.min(cols - 1, (clip.right - 1) / TILE_SIZE);
+            lastRow = Math.min(rows - 1, (clip.bottom - 1) / TILE_SIZE);
+        }
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                Bitmap tile = tiles[row * cols + col];
+                if (tile != null) {
+                    canvas.drawBitmap(tile, col * TILE_SIZE, row * TILE_SIZE, paint);
+                }
+            }
+        }
+    }
+
+    public int getPixel(int x, int y) {
+        if (x < 0 || y < 0 || x >= width || y >= height) return 0;
+        Bitmap tile = tiles[(y / TILE_SIZE) * cols + x / TILE_SIZE];
+        return tile == null ? 0 : tile.getPixel(x % TILE_SIZE, y % TILE_SIZE);
+    }
+
+    public void getPixels(int[] pixels, int offset, int stride, int x, int y, int w, int h) {
+        Rect area = clip(x, y, w, h);
+        if (area == null) return;
+        for (int row = area.top / TILE_SIZE; row <= (area.bottom - 1) / TILE_SIZE; row++) {
+            int top = Math.max(area.top, row * TILE_SIZE);
+            int bottom = Math.min(area.bottom, (row + 1) * TILE_SIZE);
+            for (int col = area.left / TILE_SIZE; col <= (area.right - 1) / TILE_SIZE; col++) {
+                int left = Math.max(area.left, col * TILE_SIZE);
+                int right = Math.min(area.right, (col + 1) * TILE_SIZE);
+                int start = offset + (top - y) * stride + (left - x);
+                Bitmap tile = tiles[row * cols + col];
+                if (tile == null) {
+                    for (int py = 0; py < bottom - top; py++) {
+                        Arrays.fill(pixels, start + py * stride, start + py * stride + (right - left), 0);
+                    }
+                } else {
+                    tile.getPixels(pixels, start, stride, left - col * TILE_SIZE, top - row * TILE_SIZE, right - left, bottom - top);
+                }
+            }
+        }
+    }
+
+    public void setPixels(int[] pixels, int offset, int stride, int x, int y, int w, int h) {
+        Rect area = clip(x, y, w, h);
+        if (area == null) return;
+        for (int row = area.top / TILE_SIZE; row <= (area.bottom - 1) / TILE_SIZE; row++) {
+            int top = Math.max(area.top, row * TILE_SIZE);
+            int bottom = Math.min(area.bottom, (row + 1) * TILE_SIZE);
+            for (int col = area.left / TILE_SIZE; col <= (area.right - 1) / TILE_SIZE; col++) {
+                int left = Math.max(area.left, col * TILE_SIZE);
+                int right = Math.min(area.right, (col + 1) * TILE_SIZE);
+                int start = offset + (top - y) * stride + (left - x);
+                int index = row * cols + col;
+                // Writing transparent pixels into a tile that was never allocated is a no-op
+                if (tiles[index] == null && isTransparent(pixels, start, stride, right - left, bottom - top)) continue;
+                ensureTile(index).setPixels(pixels, start, stride, left - col * TILE_SIZE, top - row * TILE_SIZE, right - left, bottom - top);
+            }
+        }
+    }
+
+    private Rect clip(int x, int y, int w, int h) {
+        int left = Math.max(0, x);
+        int top = Math.max(0, y);
+        int right = Math.min(width, x + w);
+        int bottom = Math.min(height, y + h);
+        if (right <= left || bottom <= top) return null;
+        return new Rect(left, top, right, bottom);
+    }
+
+    private static boolean isTransparent(int[] pixels, int start, int stride, int w, int h) {
+        for (int py = 0; py < h; py++) {
+            int rowStart = start + py * stride;
+            for (int px = 0; px < w; px++) {
+                if (pixels[rowStart + px] != 0) return false;
+            }
+        }
+        return true;
+    }
+
+    public TiledBitmap copy() {
+        TiledBitmap copy = new TiledBitmap(width, height);
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null) {
+                copy.tiles[i] = tiles[i].copy(Bitmap.Config.ARGB_8888, true);
+            }
+        }
+        return copy;
+    }
+
+    public Bitmap toBitmap() {
+        Bitmap result = Bitmap.createBitmap(Math.max(1, width), Math.max(1, height), Bitmap.Config.ARGB_8888);
+        drawTo(new Canvas(result), null);
+        return result;
+    }
+
+    public Bitmap createThumbnail(int maxSize) {
+        float scale = Math.min(1f, maxSize / (float) Math.max(1, Math.max(width, height)));
+        Bitmap result = Bitmap.createBitmap(Math.max(1, (int) (width * scale)), Math.max(1, (int) (height * scale)), Bitmap.Config.ARGB_8888);
+        Canvas canvas = new Canvas(result);
+        canvas.scale(scale, scale);
+        drawTo(canvas, new Paint(Paint.FILTER_BITMAP_FLAG));
+        return result;
+    }
+
+    public void recycle() {
+        for (int i = 0; i < tiles.length; i++) {
+            if (tiles[i] != null && !tiles[i].isRecycled()) {
+                tiles[i].recycle();
+            }
+            tiles[i] = null;
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * H.264 encoder that turns bitmaps into an MP4 one frame at a time. Frames are drawn into the
+ * codec's input surface and the output is muxed as it comes out, so the encoder can stay open
+ * for a whole recording and finishing only has to flush it. Not thread-safe; use it from one
+ * thread, apart from the drain thread it can start for itself.
+ */
+public class TimelapseEncoder {
+
+    public static final int FRAME_RATE = 30;
+    private static final int BIT_RATE = 6_000_000;
+    private static final long DRAIN_TIMEOUT_US = 10_000;
+
+    private final int width;
+    private final int height;
+    private final int frameRate;
+    private long frameDurationUs;
+    private final int sourceWidth;
+    private final int sourceHeight;
+    private final MediaCodec encoder;
+    private final Surface inputSurface;
+    private final MediaMuxer muxer;
+    private final MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
+    private final Paint scalePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect scaledRect = new Rect();
+    private int trackIndex = -1;
+    private boolean isMuxerStarted = false;
+    // Written by whichever thread drains
+    private volatile int muxedFrames = 0;
+    private Thread drainThread;
+    private volatile boolean isDrainStopped = false;
+    private volatile RuntimeException drainFailure;
+
+    public TimelapseEncoder(File outputFile, int frameWidth, int frameHeight) throws IOException {
+        this(outputFile, frameWidth, frameHeight, FRAME_RATE);
+    }
+
+    // Frames are expected at frameWidth x frameHeight; the video is that size rounded down to even
+    public TimelapseEncoder(File outputFile, int frameWidth, int frameHeight, int frameRate) throws IOException {
+        this.frameRate = frameRate;
+        frameDurationUs = 1_000_000L / frameRate;
+        sourceWidth = frameWidth;
+        sourceHeight = frameHeight;
+        width = Math.max(2, (frameWidth / 2) * 2);
+        height = Math.max(2, (frameHeight / 2) * 2);
+
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, BIT_RATE);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+
+        encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
+        try {
+            encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            inputSurface = encoder.createInputSurface();
+            encoder.start();
+            muxer = new MediaMuxer(outputFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        } catch (IOException | RuntimeException e) {
+            encoder.release();
+            throw e;
+        }
+    }
+
+    // Spacing of the frames in the video, 1 / frameRate unless set; call before the first frame
+    public void setFrameDurationUs(long durationUs) {
+        frameDurationUs = Math.max(1, durationUs);
+    }
+
+    /**
+     * Moves draining to a thread of its own, so encodeFrame() only has to draw and the codec's
+     * output is written while the next frame is being prepared. Call before the first frame.
+     */
+    public void startDrainThread() {
+        drainThread = new Thread(() -> {
+            try {
+                drain(true);
+            } catch (RuntimeException e) {
+                drainFailure = e;
+            }
+        }, "TimelapseDrain");
+        drainThread.start();
+    }
+
+    // Adds one frame to the video. A frame of another size is scaled to fit, on black.
+    public void encodeFrame(Bitmap frame) {
+        // Nothing frees the codec's input once the drain thread is gone
+        if (drainFailure != null) throw drainFailure;
+        Canvas canvas = inputSurface.lockHardwareCanvas();
+        try {
+            if (frame.getWidth() == sourceWidth && frame.getHeight() == sourceHeight) {
+                canvas.drawBitmap(frame, 0, 0, null);
+            } else {
+                float scale = Math.min(width / (float) frame.getWidth(), height / (float) frame.getHeight());
+                int w = Math.round(frame.getWidth() * scale);
+                int h = Math.round(frame.getHeight() * scale);
+                scaledRect.set((width - w) / 2, (height - h) / 2, (width + w) / 2, (height + h) / 2);
+                canvas.drawColor(Color.BLACK);
+                canvas.drawBitmap(frame, null, scaledRect, scalePaint);
+            }
+        } finally {
+            inputSurface.unlockCanvasAndPost(canvas);
+        }
+        if (drainThread == null) drain(false);
+    }
+
+    public int getFrameCount() {
+        return muxedFrames;
+    }
+
+    /**
+     * Flushes the encoder, completes the MP4 and releases everything. Returns false if no frame
+     * made it into the file, in which case the file is not a valid video.
+     */
+    public boolean finish() {
+        try {
+            encoder.signalEndOfInputStream();
+            if (drainThread != null) {
+                joinDrainThread();
+                if (drainFailure != null) throw drainFailure;
+            } else {
+                drain(true);
+            }
+            encoder.stop();
+            if (isMuxerStarted) muxer.stop();
+            return muxedFrames > 0;
+        } finally {
+            release();
+        }
+    }
+
+    // Frees the codec and muxer without completing the file
+    public void release() {
+        if (drainThread != null) {
+            isDrainStopped = true;
+            joinDrainThread();
+        }
+        encoder.release();
+        inputSurface.release();
+        muxer.release();
+    }
+
+    private void joinDrainThread() {
+        boolean isInterrupted = false;
+        while (drainThread.isAlive()) {
+            try {
+                drainThread.join();
+            } catch (InterruptedException e) {
+                isInterrupted = true;
+            }
+        }
+        drainThread = null;
+        if (isInterrupted) Thread.currentThread().interrupt();
+    }
+
+    // Writes whatever output is ready, or with untilEndOfStream waits for output until the end of the stream
+    private void drain(boolean untilEndOfStream) {
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(bufferInfo, untilEndOfStream ? DRAIN_TIMEOUT_US : 0);
+            if (index == MediaCodec.INFO_TRY_AGAIN_LATER) {
+                if (!untilEndOfStream || isDrainStopped) return;
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                if (isMuxerStarted) throw new IllegalStateException("Format changed twice");
+                trackIndex = muxer.addTrack(encoder.getOutputFormat());
+                muxer.start();
+                isMuxerStarted = true;
+            } else if (index >= 0) {
+                ByteBuffer encodedData = encoder.getOutputBuffer(index);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+                    bufferInfo.size = 0;
+                }
+                if (bufferInfo.size != 0 && isMuxerStarted) {
+                    // Surface frames carry the time they were drawn; the video plays them at a fixed rate instead
+                    bufferInfo.presentationTimeUs = muxedFrames * frameDurationUs;
+                    muxer.writeSampleData(trackIndex, encodedData, bufferInfo);
+                    muxedFrames++;
+                }
+                encoder.releaseOutputBuffer(index, false);
+                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) return;
+            }
+        }
+    }
+}
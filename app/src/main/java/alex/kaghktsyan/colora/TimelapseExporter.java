@@ -4,9 +4,11 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
-import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.media.Image;
 import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
+import android.media.MediaExtractor;
 import android.media.MediaFormat;
 import android.media.MediaMuxer;
 import android.net.Uri;
@@ -14,7 +16,6 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.provider.MediaStore;
-import android.view.Surface;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -24,116 +25,385 @@ import java.util.Arrays;
 
 public class TimelapseExporter {
 
+    // Frames decoded ahead of the encoder when exporting JPEG frames
+    private static final int PREFETCH_FRAMES = 3;
+    private static final long DECODE_TIMEOUT_US = 10_000;
+
     public interface ExportListener {
         void onProgress(int progress);
         void onComplete(Uri uri);
         void onError(String error);
     }
 
-    public static void export(Context context, File frameDir, ExportListener listener) {
+    // Delivers an export's callbacks on the main thread through one Handler, posting progress only when the percentage changes
+    private static class ListenerPoster {
+        private final Handler handler = new Handler(Looper.getMainLooper());
+        private final ExportListener listener;
+        private int lastProgress = -1;
+
+        ListenerPoster(ExportListener listener) {
+            this.listener = listener;
+        }
+
+        void progress(int done, int total) {
+            int progress = (int) (done * 100L / Math.max(1, total));
+            if (progress == lastProgress) return;
+            lastProgress = progress;
+            handler.post(() -> listener.onProgress(progress));
+        }
+
+        void complete(Uri uri) {
+            handler.post(() -> listener.onComplete(uri));
+        }
+
+        void error(Exception e) {
+            handler.post(() -> listener.onError("Ошибка экспорта: " + e.getMessage()));
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Waits for the recorder to finish, then publishes its video, encoding the frames first if it
+     * wrote JPEGs. If targetDurationSeconds is above 0 the video is fitted to it the same way for
+     * both outputs: frames that do not fit at the normal frame rate are thinned out evenly, and
+     * fewer frames are shown more slowly.
+     */
+    public static void export(Context context, TimelapseRecorder recorder, int targetDurationSeconds, ExportListener listener) {
+        ListenerPoster poster = new ListenerPoster(listener);
         new Thread(() -> {
-            MediaCodec encoder = null;
-            MediaMuxer muxer = null;
-            Surface inputSurface = null;
             try {
-                File[] frames = frameDir.listFiles();
-                if (frames == null || frames.length < 2) {
-                    throw new Exception("Недостаточно кадров для создания видео");
+                recorder.stop();
+                recorder.awaitStopped();
+                String fileName = "Timelapse_" + System.currentTimeMillis() + ".mp4";
+                File videoFile;
+                if (recorder.getOutput() == TimelapseRecorder.Output.LIVE_VIDEO) {
+                    // Encoded while drawing; stopping the recorder already finished the file
+                    videoFile = recorder.getVideoFile();
+                    if (videoFile == null) throw new Exception("Не удалось записать видео");
+                    if (targetDurationSeconds > 0) {
+                        File fitted = new File(context.getCacheDir(), fileName);
+                        fitLiveVideo(videoFile, fitted, targetDurationSeconds, poster);
+                        videoFile = fitted;
+                    }
+                } else {
+                    videoFile = new File(context.getCacheDir(), fileName);
+                    encodeFrames(recorder.getFrameDir(), videoFile, targetDurationSeconds, poster);
                 }
-                Arrays.sort(frames);
 
-                // Get dimensions from first frame
-                BitmapFactory.Options options = new BitmapFactory.Options();
-                options.inJustDecodeBounds = true;
-                BitmapFactory.decodeFile(frames[0].getAbsolutePath(), options);
-                int width = (options.outWidth / 2) * 2;
-                int height = (options.outHeight / 2) * 2;
+                poster.complete(saveToGallery(context, videoFile, fileName));
+            } catch (Exception e) {
+                poster.error(e);
+            }
+        }, "TimelapseExport").start();
+    }
+
+    /**
+     * Replays a stroke log into a video outputHeight pixels tall, or at canvas size if 0, lasting
+     * durationSeconds at frameRate. Call once the recording has stopped; the export waits for
+     * the log's writer to finish.
+     */
+    public static void exportStrokeLog(Context context, StrokeLog log, int outputHeight, int durationSeconds,
+                                       int frameRate, ExportListener listener) {
+        ListenerPoster poster = new ListenerPoster(listener);
+        new Thread(() -> {
+            try {
+                log.awaitFinished();
+                StrokeLogReplayer replayer = new StrokeLogReplayer(log.getFile());
+                if (replayer.getDrawingOpCount() < 2) {
+                    throw new Exception("Недостаточно действий для создания видео");
+                }
+                int height = outputHeight > 0 ? outputHeight : replayer.getSourceHeight();
+                int width = Math.round(replayer.getSourceWidth() * height / (float) replayer.getSourceHeight());
+                width = Math.max(2, (width / 2) * 2);
+                height = Math.max(2, (height / 2) * 2);
 
                 String fileName = "Timelapse_" + System.currentTimeMillis() + ".mp4";
-                File tempFile = new File(context.getCacheDir(), fileName);
+                File videoFile = new File(context.getCacheDir(), fileName);
+                TimelapseEncoder encoder = new TimelapseEncoder(videoFile, width, height, frameRate);
+                encoder.startDrainThread();
+                boolean isFinished = false;
+                try {
+                    replayer.render(width, height, Math.max(1, durationSeconds * frameRate), encoder::encodeFrame,
+                            progress -> poster.progress(progress, 100));
+                    isFinished = true;
+                    if (!encoder.finish()) throw new Exception("Не удалось закодировать кадры");
+                } finally {
+                    if (!isFinished) encoder.release();
+                }
+
+                poster.complete(saveToGallery(context, videoFile, fileName));
+            } catch (Exception e) {
+                poster.error(e);
+            }
+        }, "TimelapseExport").start();
+    }
 
-                MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
-                format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
-                format.setInteger(MediaFormat.KEY_BIT_RATE, 6000000);
-                format.setInteger(MediaFormat.KEY_FRAME_RATE, 30);
-                format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, 1);
+    /**
+     * Encodes the recorded JPEGs as a pipeline: a prefetcher decodes frames ahead into reused
+     * bitmaps, this thread draws them into the encoder, and the encoder's drain thread writes
+     * the output. Decoding overlaps encoding, so the encoder sets the pace.
+     *
+     * With a target duration, a recording with more frames than fit at the normal frame rate is
+     * thinned out evenly before anything is decoded, and one with fewer is shown more slowly;
+     * either way the frames are spaced to fill exactly that duration.
+     */
+    private static void encodeFrames(File frameDir, File videoFile, int targetDurationSeconds,
+                                     ListenerPoster poster) throws Exception {
+        File[] frames = frameDir.listFiles();
+        if (frames == null || frames.length < 2) {
+            throw new Exception("Недостаточно кадров для создания видео");
+        }
+        Arrays.sort(frames);
+        long frameDurationUs = 1_000_000L / TimelapseEncoder.FRAME_RATE;
+        if (targetDurationSeconds > 0) {
+            frames = pickEvenly(frames, Math.min(frames.length, targetDurationSeconds * TimelapseEncoder.FRAME_RATE));
+            frameDurationUs = targetDurationSeconds * 1_000_000L / frames.length;
+        }
 
-                encoder = MediaCodec.createEncoderByType(MediaFormat.MIMETYPE_VIDEO_AVC);
-                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
-                inputSurface = encoder.createInputSurface();
-                encoder.start();
+        // Get dimensions from first frame
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(frames[0].getAbsolutePath(), options);
 
-                muxer = new MediaMuxer(tempFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-                int videoTrackIndex = -1;
-                boolean muxerStarted = false;
+        TimelapseEncoder encoder = new TimelapseEncoder(videoFile, options.outWidth, options.outHeight);
+        encoder.setFrameDurationUs(frameDurationUs);
+        encoder.startDrainThread();
+        FramePrefetcher prefetcher = new FramePrefetcher(frames, PREFETCH_FRAMES);
+        boolean isFinished = false;
+        try {
+            int encoded = 0;
+            Bitmap frame;
+            while ((frame = prefetcher.next()) != null) {
+                encoder.encodeFrame(frame);
+                poster.progress(++encoded, frames.length);
+            }
+            isFinished = true;
+            if (!encoder.finish()) throw new Exception("Не удалось закодировать кадры");
+        } finally {
+            prefetcher.close();
+            if (!isFinished) encoder.release();
+        }
+    }
 
-                MediaCodec.BufferInfo bufferInfo = new MediaCodec.BufferInfo();
-                long frameDurationUs = 1000000 / 30; // 30 FPS
+    /**
+     * Fits a video recorded while drawing to targetDurationSeconds, as encodeFrames() does for
+     * JPEGs. If it has more frames than fit at the normal frame rate, an evenly spread subset is
+     * decoded and encoded again, so the result is shorter and smaller; otherwise its samples are
+     * only remuxed with their timestamps stretched, which plays them more slowly.
+     */
+    private static void fitLiveVideo(File source, File videoFile, int targetDurationSeconds,
+                                     ListenerPoster poster) throws Exception {
+        int frameCount = countFrames(source);
+        if (frameCount < 2) throw new Exception("Недостаточно кадров для создания видео");
+        int keep = Math.min(frameCount, targetDurationSeconds * TimelapseEncoder.FRAME_RATE);
+        if (keep < frameCount) {
+            encodeEvenly(source, videoFile, frameCount, keep, poster);
+        } else {
+            remux(source, videoFile, targetDurationSeconds, poster);
+        }
+    }
 
-                for (int i = 0; i < frames.length; i++) {
-                    Bitmap bitmap = BitmapFactory.decodeFile(frames[i].getAbsolutePath());
-                    if (bitmap == null) continue;
+    // Selects the first video track of extractor and returns its format
+    private static MediaFormat selectVideoTrack(MediaExtractor extractor) throws Exception {
+        for (int i = 0; i < extractor.getTrackCount(); i++) {
+            MediaFormat format = extractor.getTrackFormat(i);
+            String mime = format.getString(MediaFormat.KEY_MIME);
+            if (mime != null && mime.startsWith("video/")) {
+                extractor.selectTrack(i);
+                return format;
+            }
+        }
+        throw new Exception("Не удалось прочитать видео");
+    }
 
-                    Canvas canvas = inputSurface.lockHardwareCanvas();
-                    canvas.drawBitmap(bitmap, 0, 0, null);
-                    inputSurface.unlockCanvasAndPost(canvas);
-                    bitmap.recycle();
+    // Walks the sample table only; nothing is read or decoded
+    private static int countFrames(File source) throws Exception {
+        MediaExtractor extractor = new MediaExtractor();
+        try {
+            extractor.setDataSource(source.getAbsolutePath());
+            selectVideoTrack(extractor);
+            int count = 0;
+            while (extractor.getSampleTime() >= 0) {
+                count++;
+                extractor.advance();
+            }
+            return count;
+        } finally {
+            extractor.release();
+        }
+    }
 
-                    videoTrackIndex = drainEncoder(encoder, muxer, bufferInfo, false, videoTrackIndex, muxerStarted, i * frameDurationUs);
-                    if (videoTrackIndex >= 0) muxerStarted = true;
+    /**
+     * Decodes source in order and encodes the keep frames picked evenly from its frameCount,
+     * at the normal frame rate. Every frame has to be decoded, as most depend on the ones
+     * before them, but only the picked ones are converted and encoded.
+     */
+    private static void encodeEvenly(File source, File videoFile, int frameCount, int keep,
+                                     ListenerPoster poster) throws Exception {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaCodec decoder = null;
+        TimelapseEncoder encoder = null;
+        Bitmap frame = null;
+        boolean isFinished = false;
+        try {
+            extractor.setDataSource(source.getAbsolutePath());
+            MediaFormat format = selectVideoTrack(extractor);
+            int width = format.getInteger(MediaFormat.KEY_WIDTH);
+            int height = format.getInteger(MediaFormat.KEY_HEIGHT);
+            format.setInteger(MediaFormat.KEY_COLOR_FORMAT, MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Flexible);
+            decoder = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+            decoder.configure(format, null, null, 0);
+            decoder.start();
 
-                    final int progress = (int) ((i / (float) frames.length) * 100);
-                    new Handler(Looper.getMainLooper()).post(() -> listener.onProgress(progress));
+            encoder = new TimelapseEncoder(videoFile, width, height);
+            encoder.startDrainThread();
+            frame = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            int[] argb = new int[width * height];
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            boolean isInputDone = false;
+            int decoded = 0;
+            int picked = 0;
+            while (picked < keep) {
+                if (!isInputDone) {
+                    int input = decoder.dequeueInputBuffer(DECODE_TIMEOUT_US);
+                    if (input >= 0) {
+                        int size = extractor.readSampleData(decoder.getInputBuffer(input), 0);
+                        if (size < 0) {
+                            decoder.queueInputBuffer(input, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+                            isInputDone = true;
+                        } else {
+                            decoder.queueInputBuffer(input, 0, size, extractor.getSampleTime(), 0);
+                            extractor.advance();
+                        }
+                    }
                 }
+                int output = decoder.dequeueOutputBuffer(info, DECODE_TIMEOUT_US);
+                if (output < 0) continue;
+                if (info.size > 0) {
+                    if (decoded == evenIndex(picked, keep, frameCount)) {
+                        Image image = decoder.getOutputImage(output);
+                        if (image != null) {
+                            toArgb(image, argb, width, height);
+                            frame.setPixels(argb, 0, width, 0, 0, width, height);
+                            encoder.encodeFrame(frame);
+                        }
+                        picked++;
+                        poster.progress(picked, keep);
+                    }
+                    decoded++;
+                }
+                decoder.releaseOutputBuffer(output, false);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
+            }
+            isFinished = true;
+            if (!encoder.finish()) throw new Exception("Не удалось закодировать кадры");
+        } finally {
+            extractor.release();
+            // Releasing also stops it, and unlike stop() works in any state
+            if (decoder != null) decoder.release();
+            if (encoder != null && !isFinished) encoder.release();
+            if (frame != null) frame.recycle();
+        }
+    }
+
+    // Converts the decoder's YUV 4:2:0 output to ARGB, with the BT.601 video-range coefficients the encoder writes
+    private static void toArgb(Image image, int[] argb, int width, int height) {
+        Rect crop = image.getCropRect();
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer yPlane = planes[0].getBuffer();
+        ByteBuffer uPlane = planes[1].getBuffer();
+        ByteBuffer vPlane = planes[2].getBuffer();
+        int yRowStride = planes[0].getRowStride();
+        int yPixelStride = planes[0].getPixelStride();
+        // U and V always share their strides
+        int uvRowStride = planes[1].getRowStride();
+        int uvPixelStride = planes[1].getPixelStride();
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            int row = y + crop.top;
+            int yRow = row * yRowStride;
+            int uvRow = (row >> 1) * uvRowStride;
+            for (int x = 0; x < width; x++) {
+                int column = x + crop.left;
+                int c = 1192 * Math.max(0, (yPlane.get(yRow + column * yPixelStride) & 0xff) - 16);
+                int uvIndex = uvRow + (column >> 1) * uvPixelStride;
+                int u = (uPlane.get(uvIndex) & 0xff) - 128;
+                int v = (vPlane.get(uvIndex) & 0xff) - 128;
+                int r = clampChannel((c + 1634 * v) >> 10);
+                int g = clampChannel((c - 833 * v - 400 * u) >> 10);
+                int b = clampChannel((c + 2066 * u) >> 10);
+                argb[i++] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
 
-                drainEncoder(encoder, muxer, bufferInfo, true, videoTrackIndex, muxerStarted, frames.length * frameDurationUs);
-                
-                encoder.stop();
-                muxer.stop();
+    private static int clampChannel(int value) {
+        return value < 0 ? 0 : Math.min(255, value);
+    }
 
-                Uri uri = saveToGallery(context, tempFile, fileName);
-                new Handler(Looper.getMainLooper()).post(() -> listener.onComplete(uri));
+    /**
+     * Copies the video track of source into videoFile with every timestamp scaled so the video
+     * lasts targetDurationSeconds. Samples are copied as they are, without re-encoding; only
+     * used when no frames have to be dropped, so the rate never rises above the normal one.
+     */
+    private static void remux(File source, File videoFile, int targetDurationSeconds,
+                              ListenerPoster poster) throws Exception {
+        MediaExtractor extractor = new MediaExtractor();
+        MediaMuxer muxer = null;
+        boolean isMuxerStarted = false;
+        try {
+            extractor.setDataSource(source.getAbsolutePath());
+            MediaFormat format = selectVideoTrack(extractor);
+            if (!format.containsKey(MediaFormat.KEY_DURATION)) {
+                throw new Exception("Не удалось прочитать видео");
+            }
+            long durationUs = Math.max(1, format.getLong(MediaFormat.KEY_DURATION));
+            double scale = targetDurationSeconds * 1_000_000.0 / durationUs;
+            int maxSampleSize = format.containsKey(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    ? format.getInteger(MediaFormat.KEY_MAX_INPUT_SIZE)
+                    : format.getInteger(MediaFormat.KEY_WIDTH) * format.getInteger(MediaFormat.KEY_HEIGHT);
 
-            } catch (Exception e) {
-                new Handler(Looper.getMainLooper()).post(() -> listener.onError("Ошибка экспорта: " + e.getMessage()));
-                e.printStackTrace();
-            } finally {
-                if (encoder != null) encoder.release();
-                if (muxer != null) muxer.release();
-                if (inputSurface != null) inputSurface.release();
+            muxer = new MediaMuxer(videoFile.getAbsolutePath(), MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+            int outputTrack = muxer.addTrack(format);
+            muxer.start();
+            isMuxerStarted = true;
+
+            ByteBuffer sample = ByteBuffer.allocate(maxSampleSize);
+            MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+            int size;
+            while ((size = extractor.readSampleData(sample, 0)) >= 0) {
+                long sampleTimeUs = extractor.getSampleTime();
+                info.offset = 0;
+                info.size = size;
+                info.presentationTimeUs = Math.round(sampleTimeUs * scale);
+                info.flags = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_SYNC) != 0
+                        ? MediaCodec.BUFFER_FLAG_KEY_FRAME : 0;
+                muxer.writeSampleData(outputTrack, sample, info);
+                poster.progress((int) (sampleTimeUs / 1000), (int) (durationUs / 1000));
+                extractor.advance();
             }
-        }).start();
+        } finally {
+            extractor.release();
+            if (muxer != null) {
+                if (isMuxerStarted) muxer.stop();
+                muxer.release();
+            }
+        }
     }
 
-    private static int drainEncoder(MediaCodec encoder, MediaMuxer muxer, MediaCodec.BufferInfo bufferInfo, 
-                                   boolean endOfStream, int trackIndex, boolean muxerStarted, long pts) {
-        if (endOfStream) {
-            encoder.signalEndOfInputStream();
-        }
-
-        while (true) {
-            int outputBufferIndex = encoder.dequeueOutputBuffer(bufferInfo, 10000);
-            if (outputBufferIndex == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                if (!endOfStream) break;
-            } else if (outputBufferIndex == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                if (muxerStarted) throw new RuntimeException("Format changed twice");
-                trackIndex = muxer.addTrack(encoder.getOutputFormat());
-                muxer.start();
-                muxerStarted = true;
-            } else if (outputBufferIndex >= 0) {
-                ByteBuffer encodedData = encoder.getOutputBuffer(outputBufferIndex);
-                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    bufferInfo.size = 0;
-                }
-                if (bufferInfo.size != 0 && muxerStarted) {
-                    bufferInfo.presentationTimeUs = pts;
-                    muxer.writeSampleData(trackIndex, encodedData, bufferInfo);
-                }
-                encoder.releaseOutputBuffer(outputBufferIndex, false);
-                if ((bufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) break;
-            }
+    // count frames spread evenly over frames, always keeping the first and the last
+    private static File[] pickEvenly(File[] frames, int count) {
+        if (count >= frames.length) return frames;
+        File[] picked = new File[count];
+        for (int i = 0; i < count; i++) {
+            picked[i] = frames[evenIndex(i, count, frames.length)];
         }
-        return trackIndex;
+        return picked;
+    }
+
+    // Index of the i-th of count picks spread evenly over total items
+    private static int evenIndex(int i, int count, int total) {
+        return count == 1 ? total - 1 : (int) ((long) i * (total - 1) / (count - 1));
     }
 
     private static Uri saveToGallery(Context context, File videoFile, String fileName) throws Exception {
@@ -0,0 +1,264 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+/**
+ * Records timelapse frames on a single worker thread, either as numbered JPEGs in frameDir or
+ * straight into an MP4 there. Frames are drawn into bitmaps from a fixed pool and wait in a
+ * bounded queue, so a recording never holds more than queueSize + 1 frames in memory. When the
+ * queue is full the drop policy decides what gives way; the thread that captures frames never
+ * waits for the worker. A frame identical to the one before it is dropped by the worker, so
+ * captures that change nothing on screen cost no output.
+ */
+public class TimelapseRecorder {
+
+    public enum Output {
+        // frame_00000.jpg, frame_00001.jpg, ... to be encoded at export
+        JPEG_FRAMES,
+        // timelapse.mp4, encoded while recording and finished by stop()
+        LIVE_VIDEO
+    }
+
+    public enum DropPolicy {
+        // Keep the queued frames and skip the new one
+        DROP_NEWEST,
+        // Drop the oldest queued frame to make room for the new one
+        DROP_OLDEST,
+        // Draw the new frame over the newest queued one, so the latest state is always written
+        COALESCE
+    }
+
+    public static final int DEFAULT_QUEUE_SIZE = 3;
+    private static final int JPEG_QUALITY = 80;
+    private static final String VIDEO_FILE_NAME = "timelapse.mp4";
+    private static final String TAG = "TimelapseRecorder";
+
+    private final File frameDir;
+    private final Output output;
+    private final int queueSize;
+    private final DropPolicy dropPolicy;
+    private final ArrayDeque<Bitmap> queue = new ArrayDeque<>();
+    private final ArrayDeque<Bitmap> freeFrames = new ArrayDeque<>();
+    // Pool bitmaps in existence: free, queued, or being written
+    private int pooledFrames = 0;
+    private int acceptedFrames = 0;
+    // Worker thread only
+    private int writtenFrames = 0;
+    private long lastFrameHash;
+    private boolean hasLastFrame = false;
+    private int[] hashRow = new int[0];
+    private boolean isStopping = false;
+    private final Thread worker;
+    // Worker thread only
+    private TimelapseEncoder encoder;
+    private boolean isEncoderFailed = false;
+    // Set by the worker once the video is complete
+    private File videoFile;
+
+    public TimelapseRecorder(File frameDir, int queueSize, DropPolicy dropPolicy, Output output) {
+        this.frameDir = frameDir;
+        this.output = output;
+        this.queueSize = Math.max(1, queueSize);
+        this.dropPolicy = dropPolicy;
+        worker = new Thread(this::runWorker, "TimelapseCapture");
+        worker.start();
+    }
+
+    public File getFrameDir() {
+        return frameDir;
+    }
+
+    public Output getOutput() {
+        return output;
+    }
+
+    // The finished MP4 of a LIVE_VIDEO recording once awaitStopped() returns, or null if encoding failed
+    public synchronized File getVideoFile() {
+        return videoFile;
+    }
+
+    // Frames accepted so far, including ones still waiting to be written and not yet found to be duplicates
+    public synchronized int getFrameCount() {
+        return acceptedFrames;
+    }
+
+    /**
+     * Returns a bitmap of the given size to draw the next frame into, then pass to submit(), or
+     * null if the drop policy skips this frame. The bitmap's old contents are undefined.
+     */
+    public synchronized Bitmap obtainFrame(int width, int height) {
+        if (isStopping) return null;
+        // Free frames of another size are left over from before a resize
+        while (!freeFrames.isEmpty() && !hasSize(freeFrames.peekLast(), width, height)) {
+            freeFrames.pollLast().recycle();
+            pooledFrames--;
+        }
+        if (!freeFrames.isEmpty()) return freeFrames.pollLast();
+        if (pooledFrames < queueSize + 1) {
+            pooledFrames++;
+            return Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+
+        // Every frame is queued or being written
+        Bitmap reclaimed;
+        switch (dropPolicy) {
+            case DROP_OLDEST:
+                reclaimed = queue.pollFirst();
+                break;
+            case COALESCE:
+                reclaimed = queue.pollLast();
+                break;
+            default:
+                return null;
+        }
+        if (reclaimed == null) return null;
+        acceptedFrames--;
+        if (!hasSize(reclaimed, width, height)) {
+            reclaimed.recycle();
+            reclaimed = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        return reclaimed;
+    }
+
+    public synchronized void submit(Bitmap frame) {
+        if (isStopping) {
+            releaseFrame(frame);
+            return;
+        }
+        queue.addLast(frame);
+        acceptedFrames++;
+        notifyAll();
+    }
+
+    // Stops accepting frames; the ones already queued are still written
+    public synchronized void stop() {
+        isStopping = true;
+        notifyAll();
+    }
+
+    // Blocks until every queued frame has been written and the video, if any, is finished; call stop() first
+    public void awaitStopped() throws InterruptedException {
+        worker.join();
+    }
+
+    private static boolean hasSize(Bitmap bitmap, int width, int height) {
+        return bitmap.getWidth() == width && bitmap.getHeight() == height;
+    }
+
+    private void releaseFrame(Bitmap frame) {
+        if (isStopping) {
+            frame.recycle();
+            pooledFrames--;
+        } else {
+            freeFrames.addLast(frame);
+        }
+    }
+
+    private void runWorker() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+        while (true) {
+            Bitmap frame;
+            synchronized (this) {
+                while (queue.isEmpty() && !isStopping) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                frame = queue.pollFirst();
+                if (frame == null) break;
+            }
+
+            long hash = hashFrame(frame);
+            if (hasLastFrame && hash == lastFrameHash) {
+                synchronized (this) {
+                    acceptedFrames--;
+                    releaseFrame(frame);
+                }
+                continue;
+            }
+            lastFrameHash = hash;
+            hasLastFrame = true;
+
+            if (output == Output.LIVE_VIDEO) {
+                encodeFrame(frame);
+            } else {
+                writeJpeg(frame, writtenFrames);
+            }
+            writtenFrames++;
+
+            synchronized (this) {
+                releaseFrame(frame);
+            }
+        }
+        synchronized (this) {
+            for (Bitmap free : freeFrames) free.recycle();
+            pooledFrames -= freeFrames.size();
+            freeFrames.clear();
+        }
+        if (encoder != null) finishVideo();
+    }
+
+    // 64-bit FNV-1a over every pixel, read a row at a time
+    private long hashFrame(Bitmap frame) {
+        int width = frame.getWidth();
+        int height = frame.getHeight();
+        if (hashRow.length < width) hashRow = new int[width];
+        long hash = 0xcbf29ce484222325L ^ ((long) width << 32 | height);
+        for (int y = 0; y < height; y++) {
+            frame.getPixels(hashRow, 0, width, 0, y, width, 1);
+            for (int x = 0; x < width; x++) {
+                hash = (hash ^ hashRow[x]) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    private void writeJpeg(Bitmap frame, int index) {
+        File frameFile = new File(frameDir, String.format(Locale.US, "frame_%05d.jpg", index));
+        try (FileOutputStream out = new FileOutputStream(frameFile)) {
+            frame.compress(Bitmap.CompressFormat.JPEG, JPEG_QUALITY, out);
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void encodeFrame(Bitmap frame) {
+        if (isEncoderFailed) return;
+        try {
+            // The video takes the size of the first frame
+            if (encoder == null) {
+                encoder = new TimelapseEncoder(new File(frameDir, VIDEO_FILE_NAME), frame.getWidth(), frame.getHeight());
+            }
+            encoder.encodeFrame(frame);
+        } catch (IOException | RuntimeException e) {
+            Log.e(TAG, "Live timelapse encoding failed", e);
+            isEncoderFailed = true;
+            if (encoder != null) encoder.release();
+            encoder = null;
+        }
+    }
+
+    private void finishVideo() {
+        boolean isComplete = false;
+        try {
+            isComplete = encoder.finish();
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Could not finish the timelapse video", e);
+        }
+        encoder = null;
+        if (isComplete) {
+            synchronized (this) {
+                videoFile = new File(frameDir, VIDEO_FILE_NAME);
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package alex.kaghktsyan.colora;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lock-free ring buffer of touch samples from one producer thread (the UI thread) to one
+ * consumer thread (the render thread). Samples live in parallel primitive arrays, so neither
+ * side allocates. The producer publishes a sample by advancing the tail after writing it; the
+ * consumer frees slots by advancing the head after reading them.
+ */
+public class TouchQueue {
+
+    public static final int DOWN = 0;
+    public static final int MOVE = 1;
+    public static final int UP = 2;
+    public static final int CANCEL = 3;
+
+    private final int capacity;
+    private final int mask;
+    private final int[] actions;
+    private final float[] xs;
+    private final float[] ys;
+    private final long[] times;
+    // Total samples read and written; only the consumer moves head and only the producer moves tail
+    private final AtomicInteger head = new AtomicInteger();
+    private final AtomicInteger tail = new AtomicInteger();
+
+    // capacity is rounded up to a power of two
+    public TouchQueue(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+        this.mask = this.capacity - 1;
+        actions = new int[this.capacity];
+        xs = new float[this.capacity];
+        ys = new float[this.capacity];
+        times = new long[this.capacity];
+    }
+
+    // Producer side; returns false if the queue is full
+    public boolean offer(int action, float x, float y, long eventTime) {
+        int t = tail.get();
+        if (t - head.get() == capacity) return false;
+        int i = t & mask;
+        actions[i] = action;
+        xs[i] = x;
+        ys[i] = y;
+        times[i] = eventTime;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    // Consumer side: the number of samples that can be read
+    public int available() {
+        return tail.get() - head.get();
+    }
+
+    // Consumer side: the n-th unread sample, n < available()
+    public int getAction(int n) {
+        return actions[(head.get() + n) & mask];
+    }
+
+    public float getX(int n) {
+        return xs[(head.get() + n) & mask];
+    }
+
+    public float getY(int n) {
+        return ys[(head.get() + n) & mask];
+    }
+
+    public long getEventTime(int n) {
+        return times[(head.get() + n) & mask];
+    }
+
+    // Consumer side: frees the first count unread samples
+    public void remove(int count) {
+        head.lazySet(head.get() + count);
+    }
+}
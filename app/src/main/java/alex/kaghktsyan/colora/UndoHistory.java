@@ -0,0 +1,455 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Undo history that records only the pixels an edit actually touched. A pixel edit is a list
+ * of patches (layer rect + pixels before/after), so memory and undo/redo time scale with the
+ * size of the edit instead of the size of the canvas.
+ *
+ * With a journal directory set, only the newest HOT_STEPS edits stay on the heap; older ones
+ * are spilled to an {@link UndoJournal} and depth is limited by MAX_DISK_BYTES instead.
+ */
+public class UndoHistory {
+
+    private static final String TAG = "UndoHistory";
+    private static final long MAX_BYTES = 48L * 1024 * 1024;
+    private static final int MAX_STEPS = 500;
+    private static final int HOT_STEPS = 16;
+    private static final long MAX_DISK_BYTES = 512L * 1024 * 1024;
+
+    // Single thread so snapshot processing, spilling and journal cleanup stay in submission order
+    private static final ExecutorService EXECUTOR = Executors.newSingleThreadExecutor();
+
+    public interface Entry {
+        void undo();
+        void redo();
+        long getByteSize();
+        // Called when the entry is dropped for good; undone tells which state the document was left in
+        void release(boolean undone);
+    }
+
+    private static class Patch {
+        final Rect rect;
+        final int[] before;
+        final int[] after;
+
+        Patch(Rect rect, int[] before, int[] after) {
+            this.rect = rect;
+            this.before = before;
+            this.after = after;
+        }
+    }
+
+    /**
+     * While open, the edit keeps a copy-on-write snapshot of every tile the first time it is
+     * touched. On commit only the touched parts are copied; cropping them into patches and
+     * spilling them to the journal happen on the background executor.
+     */
+    public static class PixelEdit implements Entry {
+        private final DrawingView.Layer layer;
+        private final SparseArray<Bitmap> snapshots = new SparseArray<>();
+        private final SparseArray<Rect> dirty = new SparseArray<>();
+        private List<Patch> patches;
+        private UndoJournal journal;
+        private UndoJournal.Record record;
+        private Future<?> work;
+        private long byteSize;
+        private boolean isSpillQueued;
+        // Set by the executor when a queued spill could not move the patches off the heap
+        private volatile boolean isSpillFailed;
+        private volatile boolean released;
+
+        PixelEdit(DrawingView.Layer layer) {
+            this.layer = layer;
+        }
+
+        public DrawingView.Layer getLayer() {
+            return layer;
+        }
+
+        void capture(Rect rect) {
+            TiledBitmap tiles = layer.tiles;
+            int size = TiledBitmap.TILE_SIZE;
+            for (int row = rect.top / size; row <= (rect.bottom - 1) / size; row++) {
+                for (int col = rect.left / size; col <= (rect.right - 1) / size; col++) {
+                    int index = row * tiles.getColumns() + col;
+                    Rect tileDirty = dirty.get(index);
+                    if (tileDirty == null) {
+                        Bitmap tile = tiles.getTile(col, row);
+                        if (tile != null) {
+                            snapshots.put(index, tile.copy(Bitmap.Config.ARGB_8888, false));
+                        }
+                        tileDirty = new Rect(rect);
+                        dirty.put(index, tileDirty);
+                    } else {
+                        tileDirty.union(rect);
+                    }
+                    tileDirty.intersect(col * size, row * size, (col + 1) * size, (row + 1) * size);
+                }
+            }
+        }
+
+        // Like capture(), but the tile is being swapped out, so the old bitmap itself becomes the snapshot
+        void adopt(int index, Bitmap previous, Rect rect) {
+            Rect tileDirty = dirty.get(index);
+            if (tileDirty == null) {
+                if (previous != null) snapshots.put(index, previous);
+                dirty.put(index, new Rect(rect));
+            } else {
+                tileDirty.union(rect);
+                if (previous != null) previous.recycle();
+            }
+        }
+
+        boolean isEmpty() {
+            return dirty.size() == 0;
+        }
+
+        void finish() {
+            TiledBitmap tiles = layer.tiles;
+            int size = TiledBitmap.TILE_SIZE;
+            int count = dirty.size();
+            final Rect[] rects = new Rect[count];
+            final Bitmap[] before = new Bitmap[count];
+            final Bitmap[] after = new Bitmap[count];
+            for (int i = 0; i < count; i++) {
+                int index = dirty.keyAt(i);
+                int col = index % tiles.getColumns();
+                int row = index / tiles.getColumns();
+                Rect r = dirty.valueAt(i);
+                rects[i] = r;
+                before[i] = snapshots.get(index);
+                Bitmap tile = tiles.getTile(col, row);
+                if (tile != null) {
+                    after[i] = Bitmap.createBitmap(tile, r.left - col * size, r.top - row * size, r.width(), r.height());
+                }
+                byteSize += 8L * r.width() * r.height();
+            }
+            snapshots.clear();
+            dirty.clear();
+            work = EXECUTOR.submit(() -> buildPatches(rects, before, after));
+        }
+
+        private void buildPatches(Rect[] rects, Bitmap[] before, Bitmap[] after) {
+            int size = TiledBitmap.TILE_SIZE;
+            List<Patch> built = new ArrayList<>(rects.length);
+            for (int i = 0; i < rects.length; i++) {
+                Rect r = rects[i];
+                int[] beforePixels = new int[r.width() * r.height()];
+                int[] afterPixels = new int[r.width() * r.height()];
+                if (before[i] != null) {
+                    before[i].getPixels(beforePixels, 0, r.width(), r.left % size, r.top % size, r.width(), r.height());
+                    before[i].recycle();
+                }
+                if (after[i] != null) {
+                    after[i].getPixels(afterPixels, 0, r.width(), 0, 0, r.width(), r.height());
+                    after[i].recycle();
+                }
+                built.add(new Patch(r, beforePixels, afterPixels));
+            }
+            synchronized (this) {
+                patches = built;
+            }
+        }
+
+        void spill(UndoJournal target) {
+            isSpillQueued = true;
+            work = EXECUTOR.submit(() -> {
+                synchronized (this) {
+                    if (released) return;
+                    if (patches == null) {
+                        isSpillFailed = true;
+                        return;
+                    }
+                    List<Rect> rects = new ArrayList<>();
+                    List<int[]> before = new ArrayList<>();
+                    List<int[]> after = new ArrayList<>();
+                    for (Patch patch : patches) {
+                        rects.add(patch.rect);
+                        before.add(patch.before);
+                        after.add(patch.after);
+                    }
+                    try {
+                        record = target.append(rects, before, after);
+                        journal = target;
+                        patches = null;
+                    } catch (IOException e) {
+                        isSpillFailed = true;
+                        Log.e(TAG, "Failed to spill undo history", e);
+                    }
+                }
+            });
+        }
+
+        boolean isSpillQueued() {
+            return isSpillQueued;
+        }
+
+        private void await() {
+            Future<?> pending = work;
+            if (pending == null) return;
+            try {
+                pending.get();
+            } catch (ExecutionException | InterruptedException e) {
+                Log.e(TAG, "Undo snapshot failed", e);
+            }
+        }
+
+        private synchronized void apply(boolean undo) {
+            if (record != null) {
+                try {
+                    journal.apply(record, layer.tiles, undo);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to read undo journal", e);
+                }
+                return;
+            }
+            if (patches == null) return;
+            // Patches never overlap (one per tile), so the order they are written in does not matter
+            for (Patch patch : patches) {
+                Rect r = patch.rect;
+                layer.tiles.setPixels(undo ? patch.before : patch.after, 0, r.width(), r.left, r.top, r.width(), r.height());
+            }
+        }
+
+        @Override
+        public void undo() {
+            await();
+            apply(true);
+        }
+
+        @Override
+        public void redo() {
+            await();
+            apply(false);
+        }
+
+        // Heap bytes. A queued spill stops counting, so edits waiting for the executor are not
+        // evicted for memory they are about to give back; if the spill fails they count again.
+        @Override
+        public long getByteSize() {
+            return isSpillQueued && !isSpillFailed ? 0 : byteSize;
+        }
+
+        @Override
+        public void release(boolean undone) {
+            released = true;
+            for (int i = 0; i < snapshots.size(); i++) {
+                snapshots.valueAt(i).recycle();
+            }
+            snapshots.clear();
+            EXECUTOR.execute(() -> {
+                synchronized (this) {
+                    patches = null;
+                    if (record != null) {
+                        journal.release(record);
+                        record = null;
+                    }
+                }
+            });
+        }
+    }
+
+    public static class LayerChange implements Entry {
+        private final List<DrawingView.Layer> layers;
+        private final DrawingView.Layer layer;
+        private final int index;
+        private final boolean added;
+
+        public LayerChange(List<DrawingView.Layer> layers, DrawingView.Layer layer, int index, boolean added) {
+            this.layers = layers;
+            this.layer = layer;
+            this.index = index;
+            this.added = added;
+        }
+
+        @Override
+        public void undo() {
+            if (added) {
+                layers.remove(layer);
+            } else {
+                layers.add(Math.min(index, layers.size()), layer);
+            }
+        }
+
+        @Override
+        public void redo() {
+            if (added) {
+                layers.add(Math.min(index, layers.size()), layer);
+            } else {
+                layers.remove(layer);
+            }
+        }
+
+        @Override
+        public long getByteSize() {
+            return 64;
+        }
+
+        @Override
+        public void release(boolean undone) {
+            // The layer is only detached from the document if it was removed, or added and then undone
+            if (added == undone) {
+                layer.recycle();
+            }
+        }
+    }
+
+    private final List<Entry> undoStack = new ArrayList<>();
+    private final List<Entry> redoStack = new ArrayList<>();
+    // Reused by capture(), which runs for every eraser segment
+    private final Rect captureRect = new Rect();
+    private PixelEdit pendingEdit;
+    private File journalDir;
+    private UndoJournal journal;
+
+    public void setJournalDir(File dir) {
+        journalDir = dir;
+    }
+
+    public void beginEdit(DrawingView.Layer layer) {
+        if (pendingEdit != null) commitEdit();
+        pendingEdit = new PixelEdit(layer);
+    }
+
+    public boolean isEditing() {
+        return pendingEdit != null;
+    }
+
+    // Must be called before the pixels inside bounds are modified
+    public void capture(RectF bounds) {
+        if (pendingEdit == null) return;
+        TiledBitmap tiles = pendingEdit.layer.tiles;
+        bounds.roundOut(captureRect);
+        if (!captureRect.intersect(0, 0, tiles.getWidth(), tiles.getHeight())) return;
+        pendingEdit.capture(captureRect);
+    }
+
+    // Swaps a whole tile of the edited layer while an edit is open; changed is in layer coordinates
+    public void replaceTile(int col, int row, Bitmap tile, Rect changed) {
+        if (pendingEdit == null) return;
+        TiledBitmap tiles = pendingEdit.layer.tiles;
+        Bitmap previous = tiles.replaceTile(col, row, tile);
+        pendingEdit.adopt(row * tiles.getColumns() + col, previous, changed);
+    }
+
+    // Returns false if there was no edit open or it left every pixel as it was
+    public boolean commitEdit() {
+        PixelEdit edit = pendingEdit;
+        pendingEdit = null;
+        if (edit == null || edit.isEmpty()) return false;
+        edit.finish();
+        push(edit);
+        return true;
+    }
+
+    public void push(Entry entry) {
+        clearStack(redoStack, true);
+        undoStack.add(entry);
+        spillColdEntries();
+        while (undoStack.size() > 1 && isOverBudget()) {
+            Entry oldest = undoStack.remove(0);
+            oldest.release(false);
+        }
+    }
+
+    private boolean isOverBudget() {
+        if (getTotalBytes() > MAX_BYTES) return true;
+        if (journal == null) return undoStack.size() > MAX_STEPS;
+        return journal.getLiveBytes() > MAX_DISK_BYTES;
+    }
+
+    private void spillColdEntries() {
+        if (journalDir == null) return;
+        for (int i = undoStack.size() - HOT_STEPS - 1; i >= 0; i--) {
+            Entry entry = undoStack.get(i);
+            if (!(entry instanceof PixelEdit)) continue;
+            PixelEdit edit = (PixelEdit) entry;
+            // Everything older than a spilled edit was spilled on an earlier push
+            if (edit.isSpillQueued()) break;
+            if (journal == null) {
+                try {
+                    journal = new UndoJournal(journalDir);
+                } catch (IOException e) {
+                    Log.e(TAG, "Failed to create undo journal", e);
+                    journalDir = null;
+                    return;
+                }
+            }
+            edit.spill(journal);
+        }
+    }
+
+    public boolean canUndo() {
+        return !undoStack.isEmpty();
+    }
+
+    public boolean canRedo() {
+        return !redoStack.isEmpty();
+    }
+
+    public boolean undo() {
+        commitEdit();
+        if (undoStack.isEmpty()) return false;
+        Entry entry = undoStack.remove(undoStack.size() - 1);
+        entry.undo();
+        redoStack.add(entry);
+        return true;
+    }
+
+    // An open edit is committed first, which leaves nothing to redo if it changed anything
+    public boolean redo() {
+        commitEdit();
+        if (redoStack.isEmpty()) return false;
+        Entry entry = redoStack.remove(redoStack.size() - 1);
+        entry.redo();
+        undoStack.add(entry);
+        return true;
+    }
+
+    // Summed on demand, as an entry counts again whenever its background spill fails
+    public long getTotalBytes() {
+        long total = 0;
+        for (Entry entry : undoStack) total += entry.getByteSize();
+        for (Entry entry : redoStack) total += entry.getByteSize();
+        return total;
+    }
+
+    public void clear() {
+        if (pendingEdit != null) {
+            pendingEdit.release(false);
+            pendingEdit = null;
+        }
+        clearStack(undoStack, false);
+        clearStack(redoStack, true);
+    }
+
+    public void release() {
+        clear();
+        if (journal != null) {
+            EXECUTOR.execute(journal::close);
+            journal = null;
+        }
+    }
+
+    private void clearStack(List<Entry> stack, boolean undone) {
+        for (Entry entry : stack) {
+            entry.release(undone);
+        }
+        stack.clear();
+    }
+}
@@ -0,0 +1,197 @@
+package alex.kaghktsyan.colora;
+
+import android.graphics.Rect;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Append-only cache file holding undo patches that fell out of the in-memory window.
+ * Records are read back through memory-mapped I/O, and dead records are compacted away
+ * once they make up most of the file.
+ *
+ * Record layout (ints): patchCount, then per patch left, top, right, bottom, before[w*h], after[w*h].
+ */
+public class UndoJournal implements Closeable {
+
+    private static final String PREFIX = "undo_";
+    private static final String SUFFIX = ".journal";
+    private static final long COMPACT_SLACK_BYTES = 16L * 1024 * 1024;
+
+    public static class Record {
+        private long offset;
+        private final long length;
+
+        Record(long offset, long length) {
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public long getLength() {
+            return length;
+        }
+    }
+
+    // Journal files this process has open, which deleteStale() must leave alone
+    private static final Set<String> OPEN_FILES = new HashSet<>();
+
+    private final File dir;
+    private File file;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final List<Record> records = new ArrayList<>();
+    private long liveBytes = 0;
+
+    public UndoJournal(File dir) throws IOException {
+        this.dir = dir;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        file = createFile(dir);
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    /**
+     * Journals are per process; anything left behind belongs to a process that has died. Safe to
+     * run in the background while this process already has journals open.
+     */
+    public static void deleteStale(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (!f.getName().startsWith(PREFIX) || !f.getName().endsWith(SUFFIX)) continue;
+            synchronized (OPEN_FILES) {
+                if (!OPEN_FILES.contains(f.getName()) && !f.delete()) f.deleteOnExit();
+            }
+        }
+    }
+
+    private static File createFile(File dir) throws IOException {
+        synchronized (OPEN_FILES) {
+            File created = File.createTempFile(PREFIX, SUFFIX, dir);
+            OPEN_FILES.add(created.getName());
+            return created;
+        }
+    }
+
+    private static void deleteFile(File f) {
+        synchronized (OPEN_FILES) {
+            OPEN_FILES.remove(f.getName());
+        }
+        if (!f.delete()) f.deleteOnExit();
+    }
+
+    public synchronized Record append(List<Rect> rects, List<int[]> before, List<int[]> after) throws IOException {
+        long length = 4;
+        for (Rect r : rects) {
+            length += 16 + 8L * r.width() * r.height();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate((int) length);
+        IntBuffer ints = buffer.asIntBuffer();
+        ints.put(rects.size());
+        for (int i = 0; i < rects.size(); i++) {
+            Rect r = rects.get(i);
+            ints.put(r.left).put(r.top).put(r.right).put(r.bottom);
+            ints.put(before.get(i));
+            ints.put(after.get(i));
+        }
+
+        long offset = channel.size();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, offset + buffer.position());
+        }
+        Record record = new Record(offset, length);
+        records.add(record);
+        liveBytes += length;
+        return record;
+    }
+
+    public synchronized void apply(Record record, TiledBitmap target, boolean undo) throws IOException {
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, record.offset, record.length);
+        IntBuffer ints = map.asIntBuffer();
+        int count = ints.get(0);
+        int[] starts = new int[count];
+        int position = 1;
+        for (int i = 0; i < count; i++) {
+            starts[i] = position;
+            int w = ints.get(position + 2) - ints.get(position);
+            int h = ints.get(position + 3) - ints.get(position + 1);
+            position += 4 + 2 * w * h;
+        }
+
+        // Undo restores "before" buffers newest-first, redo writes the final "after" state
+        for (int n = 0; n < count; n++) {
+            int start = starts[undo ? count - 1 - n : n];
+            int left = ints.get(start);
+            int top = ints.get(start + 1);
+            int w = ints.get(start + 2) - left;
+            int h = ints.get(start + 3) - top;
+            int[] pixels = new int[w * h];
+            ints.position(start + 4 + (undo ? 0 : w * h));
+            ints.get(pixels);
+            target.setPixels(pixels, 0, w, left, top, w, h);
+        }
+    }
+
+    public synchronized void release(Record record) {
+        if (records.remove(record)) {
+            liveBytes -= record.length;
+        }
+        try {
+            if (records.isEmpty()) {
+                channel.truncate(0);
+            } else if (channel.size() > liveBytes * 2 + COMPACT_SLACK_BYTES) {
+                compact();
+            }
+        } catch (IOException ignored) {
+        }
+    }
+
+    private void compact() throws IOException {
+        File compacted = createFile(dir);
+        RandomAccessFile newRaf = new RandomAccessFile(compacted, "rw");
+        FileChannel newChannel = newRaf.getChannel();
+        long position = 0;
+        for (Record record : records) {
+            long copied = 0;
+            while (copied < record.length) {
+                copied += channel.transferTo(record.offset + copied, record.length - copied, newChannel);
+            }
+            record.offset = position;
+            position += record.length;
+        }
+        channel.close();
+        raf.close();
+        deleteFile(file);
+        file = compacted;
+        raf = newRaf;
+        channel = newChannel;
+    }
+
+    public synchronized long getLiveBytes() {
+        return liveBytes;
+    }
+
+    @Override
+    public synchronized void close() {
+        records.clear();
+        liveBytes = 0;
+        try {
+            channel.close();
+            raf.close();
+        } catch (IOException ignored) {
+        }
+        deleteFile(file);
+    }
+}
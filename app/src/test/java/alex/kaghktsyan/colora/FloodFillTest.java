@@ -0,0 +1,247 @@
+package alex.kaghktsyan.colora;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fills small hand-drawn and random images and compares the result with a plain 4-connected
+ * breadth-first fill. Only int[] buffers are involved, so this runs on the JVM.
+ */
+public class FloodFillTest {
+
+    private static final int W = 0xffffffff;
+    private static final int K = 0xff000000;
+    private static final int RED = 0xffff0000;
+
+    private final FloodFill fill = new FloodFill();
+
+    @Test
+    public void ringKeepsItsHoleWhenFilledFromOutside() {
+        int[] pixels = ring();
+        assertTrue(fill.fill(pixels, null, 7, 7, 0, 0, W, RED, 0));
+
+        int[] expected = ring();
+        for (int i = 0; i < expected.length; i++) {
+            int x = i % 7, y = i / 7;
+            if (x == 0 || y == 0 || x == 6 || y == 6) expected[i] = RED;
+        }
+        assertArrayEquals(expected, pixels);
+        assertEquals(24, fill.getFilledCount());
+    }
+
+    @Test
+    public void ringHoleFillsAlone() {
+        int[] pixels = ring();
+        assertTrue(fill.fill(pixels, null, 7, 7, 3, 3, W, RED, 0));
+        assertEquals(9, fill.getFilledCount());
+        for (int y = 0; y < 7; y++) {
+            for (int x = 0; x < 7; x++) {
+                boolean isHole = x >= 2 && x <= 4 && y >= 2 && y <= 4;
+                assertEquals(isHole ? RED : ring()[y * 7 + x], pixels[y * 7 + x]);
+            }
+        }
+    }
+
+    @Test
+    public void fillWindsBackThroughConcaveShapes() {
+        // A U whose arms are only joined at the bottom, seeded at the top of the left arm
+        String[] rows = {
+                ".#.#.",
+                ".#.#.",
+                ".#.#.",
+                ".....",
+        };
+        int[] pixels = parse(rows);
+        assertTrue(fill.fill(pixels, null, 5, 4, 0, 0, W, RED, 0));
+        assertEquals(14, fill.getFilledCount());
+        assertEquals(RED, pixels[4]);
+        assertEquals(RED, pixels[2]);
+    }
+
+    @Test
+    public void toleranceZeroOnlyFillsTheExactColour() {
+        int[] pixels = {W, W, 0xfffefefe, W, W};
+        assertTrue(fill.fill(pixels, null, 5, 1, 0, 0, W, RED, 0));
+        assertArrayEquals(new int[]{RED, RED, 0xfffefefe, W, W}, pixels);
+    }
+
+    @Test
+    public void toleranceHundredFillsEverything() {
+        int[] pixels = {W, K, 0x00000000, 0x80123456, W, K};
+        assertTrue(fill.fill(pixels, null, 3, 2, 0, 0, W, RED, 100));
+        int[] expected = new int[6];
+        Arrays.fill(expected, RED);
+        assertArrayEquals(expected, pixels);
+    }
+
+    @Test
+    public void toleranceIsClamped() {
+        int[] pixels = {W, K};
+        assertTrue(fill.fill(pixels, null, 2, 1, 0, 0, W, RED, 500));
+        assertArrayEquals(new int[]{RED, RED}, pixels);
+        pixels = new int[]{W, 0xfffefefe};
+        assertTrue(fill.fill(pixels, null, 2, 1, 0, 0, W, RED, -5));
+        assertArrayEquals(new int[]{RED, 0xfffefefe}, pixels);
+    }
+
+    @Test
+    public void fillReachesEveryEdgeAndCorner() {
+        int[] pixels = new int[9 * 6];
+        Arrays.fill(pixels, W);
+        assertTrue(fill.fill(pixels, null, 9, 6, 8, 5, W, RED, 0));
+        assertEquals(pixels.length, fill.getFilledCount());
+        for (int pixel : pixels) assertEquals(RED, pixel);
+    }
+
+    @Test
+    public void singleRowAndColumnImagesFill() {
+        int[] row = {W, W, K, W};
+        assertTrue(fill.fill(row, null, 4, 1, 1, 0, W, RED, 0));
+        assertArrayEquals(new int[]{RED, RED, K, W}, row);
+
+        int[] column = {W, K, W, W};
+        assertTrue(fill.fill(column, null, 1, 4, 0, 3, W, RED, 0));
+        assertArrayEquals(new int[]{W, K, RED, RED}, column);
+    }
+
+    @Test
+    public void seedOutsideTheImageFillsNothing() {
+        int[] pixels = {W, W, W, W};
+        assertFalse(fill.fill(pixels, null, 2, 2, 2, 0, W, RED, 0));
+        assertFalse(fill.fill(pixels, null, 2, 2, 0, -1, W, RED, 0));
+        assertTrue(fill.isEmpty());
+        assertArrayEquals(new int[]{W, W, W, W}, pixels);
+    }
+
+    @Test
+    public void seedOutsideTheRegionFillsNothing() {
+        int[] pixels = {W, K};
+        assertFalse(fill.fill(pixels, null, 2, 1, 1, 0, W, RED, 0));
+        assertTrue(fill.isEmpty());
+    }
+
+    @Test
+    public void fillFromAnAlreadyFilledRegionReturnsFalse() {
+        int[] pixels = ring();
+        fill.reset(pixels, null, 7, 7, W, RED, 0);
+        assertTrue(fill.fillFrom(0, 0));
+        int filled = fill.getFilledCount();
+        assertFalse(fill.fillFrom(0, 0));
+        assertFalse(fill.fillFrom(6, 3));
+        assertEquals(filled, fill.getFilledCount());
+        // The hole is a separate region of the same session
+        assertTrue(fill.fillFrom(3, 3));
+        assertEquals(filled + 9, fill.getFilledCount());
+    }
+
+    @Test
+    public void samplesDecideTheRegionAndPixelsReceiveTheFill() {
+        int[] samples = {W, W, K, W};
+        int[] pixels = {1, 2, 3, 4};
+        assertTrue(fill.fill(pixels, samples, 4, 1, 0, 0, W, RED, 0));
+        assertArrayEquals(new int[]{RED, RED, 3, 4}, pixels);
+        assertArrayEquals(new int[]{W, W, K, W}, samples);
+    }
+
+    @Test
+    public void maskOnlyFillLeavesPixelsAlone() {
+        int[] samples = ring();
+        fill.reset(null, samples, 7, 7, W, RED, 0);
+        assertTrue(fill.fillFrom(3, 3));
+        assertArrayEquals(ring(), samples);
+        long[] mask = fill.getFilledMask();
+        int i = 3 * 7 + 3;
+        assertTrue((mask[i >>> 6] & (1L << i)) != 0);
+        i = 1 * 7 + 1;
+        assertFalse((mask[i >>> 6] & (1L << i)) != 0);
+    }
+
+    @Test
+    public void visitedSetIsClearedBetweenFills() {
+        int[] pixels = new int[16];
+        Arrays.fill(pixels, W);
+        assertTrue(fill.fill(pixels, null, 4, 4, 0, 0, W, RED, 0));
+        Arrays.fill(pixels, W);
+        assertTrue(fill.fill(pixels, null, 4, 4, 3, 3, W, RED, 0));
+        assertEquals(16, fill.getFilledCount());
+    }
+
+    @Test
+    public void matchesBreadthFirstFillOnRandomImages() {
+        Random random = new Random(42);
+        int[] colors = {W, K, RED};
+        for (int round = 0; round < 200; round++) {
+            int width = 1 + random.nextInt(40);
+            int height = 1 + random.nextInt(40);
+            int[] image = new int[width * height];
+            for (int i = 0; i < image.length; i++) {
+                // Mostly white, so regions are large and wind around the other colours
+                image[i] = random.nextInt(10) < 6 ? W : colors[1 + random.nextInt(2)];
+            }
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int target = image[y * width + x];
+
+            int[] expected = breadthFirstFill(image, width, height, x, y, 0xff00ff00);
+            int[] pixels = image.clone();
+            assertTrue(fill.fill(pixels, null, width, height, x, y, target, 0xff00ff00, 0));
+            assertArrayEquals(expected, pixels);
+        }
+    }
+
+    // 7x7 white image with a black square outline from (1, 1) to (5, 5) around a 3x3 white hole
+    private static int[] ring() {
+        int[] pixels = new int[49];
+        Arrays.fill(pixels, W);
+        for (int i = 1; i <= 5; i++) {
+            pixels[7 + i] = K;
+            pixels[5 * 7 + i] = K;
+            pixels[i * 7 + 1] = K;
+            pixels[i * 7 + 5] = K;
+        }
+        return pixels;
+    }
+
+    // '#' is black, anything else white
+    private static int[] parse(String[] rows) {
+        int width = rows[0].length();
+        int[] pixels = new int[width * rows.length];
+        for (int y = 0; y < rows.length; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels[y * width + x] = rows[y].charAt(x) == '#' ? K : W;
+            }
+        }
+        return pixels;
+    }
+
+    private static int[] breadthFirstFill(int[] image, int width, int height, int x, int y, int replacement) {
+        int[] result = image.clone();
+        int target = image[y * width + x];
+        boolean[] seen = new boolean[image.length];
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        queue.add(y * width + x);
+        seen[y * width + x] = true;
+        while (!queue.isEmpty()) {
+            int i = queue.poll();
+            result[i] = replacement;
+            int px = i % width, py = i / width;
+            int[][] neighbours = {{px - 1, py}, {px + 1, py}, {px, py - 1}, {px, py + 1}};
+            for (int[] n : neighbours) {
+                if (n[0] < 0 || n[0] >= width || n[1] < 0 || n[1] >= height) continue;
+                int j = n[1] * width + n[0];
+                if (seen[j] || image[j] != target) continue;
+                seen[j] = true;
+                queue.add(j);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,156 @@
+package alex.kaghktsyan.colora;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+/**
+ * Writes small logs through StrokeLog and checks which operations read() says survived undo
+ * and redo. Only operations that need no pixels are written, so this runs on the JVM.
+ */
+public class StrokeLogTest {
+
+    private static final int WIDTH = 100;
+    private static final int HEIGHT = 50;
+    private static final int BACKGROUND = 0xffffffff;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File file;
+    private StrokeLog log;
+
+    @Before
+    public void setUp() throws Exception {
+        file = folder.newFile("strokes.log");
+        log = new StrokeLog(file, WIDTH, HEIGHT, BACKGROUND);
+        log.setBrush(0xff000000, 255, 10, 100, 0.1f, false);
+    }
+
+    @Test
+    public void sizeAndBackgroundAreRead() throws Exception {
+        int[] size = new int[2];
+        List<StrokeLog.Op> ops = finishAndRead(size);
+        assertArrayEquals(new int[]{WIDTH, HEIGHT}, size);
+        assertTypes(ops, StrokeLog.OP_BACKGROUND);
+        assertEquals(BACKGROUND, ops.get(0).color);
+    }
+
+    @Test
+    public void strokeKeepsItsPointsAndBrush() throws Exception {
+        stroke(1, 2, 3, 4);
+        List<StrokeLog.Op> ops = finishAndRead(new int[2]);
+        assertTypes(ops, StrokeLog.OP_BACKGROUND, StrokeLog.OP_STROKE);
+        StrokeLog.Op stroke = ops.get(1);
+        assertArrayEquals(new float[]{1, 2, 3, 4}, stroke.points, 0);
+        assertEquals(10, stroke.brush.width, 0);
+    }
+
+    @Test
+    public void undoAfterRedoDropsTheEditAgain() throws Exception {
+        stroke(1, 1, 2, 2);
+        log.addText(0, "b", 5, 5);
+        log.undo();
+        log.redo();
+        log.undo();
+        List<StrokeLog.Op> ops = finishAndRead(new int[2]);
+        assertTypes(ops, StrokeLog.OP_BACKGROUND, StrokeLog.OP_STROKE);
+    }
+
+    @Test
+    public void undoingEverythingThenRedoingRestoresTheOrder() throws Exception {
+        stroke(1, 1, 2, 2);
+        log.addText(0, "b", 5, 5);
+        log.undo();
+        log.undo();
+        log.redo();
+        log.redo();
+        List<StrokeLog.Op> ops = finishAndRead(new int[2]);
+        assertTypes(ops, StrokeLog.OP_BACKGROUND, StrokeLog.OP_STROKE, StrokeLog.OP_TEXT);
+        assertEquals("b", ops.get(2).text);
+    }
+
+    @Test
+    public void newEditDiscardsWhatCouldBeRedone() throws Exception {
+        stroke(1, 1, 2, 2);
+        log.undo();
+        log.addText(0, "c", 5, 5);
+        log.redo();
+        List<StrokeLog.Op> ops = finishAndRead(new int[2]);
+        assertTypes(ops, StrokeLog.OP_BACKGROUND, StrokeLog.OP_TEXT);
+    }
+
+    @Test
+    public void redoAfterPermanentOperationAppendsTheEdit() throws Exception {
+        stroke(1, 1, 2, 2);
+        log.undo();
+        log.setBackground(0xff0000ff);
+        log.redo();
+        List<StrokeLog.Op> ops = finishAndRead(new int[2]);
+        assertTypes(ops, StrokeLog.OP_BACKGROUND, StrokeLog.OP_BACKGROUND, StrokeLog.OP_STROKE);
+        assertEquals(0xff0000ff, ops.get(1).color);
+    }
+
+    @Test
+    public void undoCannotReachPastSnapshot() throws Exception {
+        stroke(1, 1, 2, 2);
+        log.writeSnapshot(Collections.<DrawingView.Layer>emptyList());
+        assertFalse(log.canUndo());
+        // Ignored: the view logs another snapshot instead
+        log.undo();
+        log.addText(0, "d", 5, 5);
+        log.undo();
+        log.redo();
+        log.undo();
+        List<StrokeLog.Op> ops = finishAndRead(new int[2]);
+        assertTypes(ops, StrokeLog.OP_BACKGROUND, StrokeLog.OP_STROKE, StrokeLog.OP_CLEAR_LAYERS);
+    }
+
+    @Test
+    public void editsAfterSnapshotCanBeUndone() throws Exception {
+        log.writeSnapshot(Collections.<DrawingView.Layer>emptyList());
+        stroke(1, 1, 2, 2);
+        log.addLayer(true);
+        log.undo();
+        List<StrokeLog.Op> ops = finishAndRead(new int[2]);
+        assertTypes(ops, StrokeLog.OP_BACKGROUND, StrokeLog.OP_CLEAR_LAYERS, StrokeLog.OP_STROKE);
+    }
+
+    @Test
+    public void callsAfterFinishAreIgnored() throws Exception {
+        stroke(1, 1, 2, 2);
+        log.finish();
+        log.addText(0, "e", 5, 5);
+        log.undo();
+        log.awaitFinished();
+        List<StrokeLog.Op> ops = StrokeLog.read(file, new int[2]);
+        assertTypes(ops, StrokeLog.OP_BACKGROUND, StrokeLog.OP_STROKE);
+    }
+
+    private void stroke(float x1, float y1, float x2, float y2) {
+        log.beginStroke(x1, y1);
+        log.strokeTo(x2, y2);
+        log.endStroke(0);
+    }
+
+    private List<StrokeLog.Op> finishAndRead(int[] size) throws Exception {
+        log.finish();
+        log.awaitFinished();
+        return StrokeLog.read(file, size);
+    }
+
+    private static void assertTypes(List<StrokeLog.Op> ops, int... types) {
+        int[] actual = new int[ops.size()];
+        for (int i = 0; i < actual.length; i++) actual[i] = ops.get(i).type;
+        assertArrayEquals(types, actual);
+    }
+}